@@ -0,0 +1,324 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Routes every origin-destination pair in a CSV file, such as a day's
+ * trip log, and writes one result line per pair in input order. Each
+ * input line is either two city labels as GraphDemo.readCities reads
+ * them from uscities.csv, or four numbers:
+ *
+ *   Durham NC,Seattle WA
+ *   35.99,-78.90,47.62,-122.35
+ *
+ * and each output line is origin,destination,distance,hops,status with
+ * the route's points as lat lon;lat lon;... appended when geometry is
+ * asked for. Status is ok, or says why there is no distance, such as an
+ * unknown city or no route; blank lines and lines starting with # are
+ * skipped. Endpoints are snapped with nearestPoint, each city once.
+ *
+ * Lines are read, routed on a pool of worker threads and written as
+ * they finish, with at most a fixed window of pairs in flight, so memory
+ * stays bounded however long the file is. Progress and throughput go to
+ * standard error every few seconds.
+ *
+ * Usage: java BatchRouter od.csv results.csv [file.graph] [threads] [search mode] [geometry]
+ */
+public class BatchRouter {
+    private static final long REPORT_NANOS = 2_000_000_000L;
+
+    private final GraphProcessor.FrozenGraph myGraph;
+    private final Map<String, Point> myCities;
+    private final Map<String, Point> mySnapped = new ConcurrentHashMap<>();
+    private final int myThreads;
+    private final boolean myGeometry;
+
+    /**
+     * Creates a router for graph resolving names in cities, routing on
+     * the given number of threads and writing each route's points too
+     * if geometry is true.
+     */
+    public BatchRouter(GraphProcessor.FrozenGraph graph, Map<String, Point> cities, int threads, boolean geometry) {
+        myGraph = graph;
+        myCities = cities;
+        myThreads = threads;
+        myGeometry = geometry;
+    }
+
+    /**
+     * Routes every pair read from in and writes the results to out,
+     * reporting progress to log.
+     * @return number of pairs routed, including ones without a route
+     */
+    public long run(BufferedReader in, Writer out, PrintStream log) throws IOException {
+        ExecutorService workers = Executors.newFixedThreadPool(myThreads);
+        // results in input order; a full queue holds the reader back
+        BlockingQueue<Future<Row>> pending = new ArrayBlockingQueue<>(64 * myThreads);
+        Future<Row> done = CompletableFuture.completedFuture(null);
+        Writing writing = new Writing(pending, out, log);
+        Thread writer = new Thread(writing, "BatchRouter writer");
+        writer.start();
+        boolean written = false;
+        try {
+            String line;
+            while ((line = in.readLine()) != null && writing.failure == null) {
+                String row = line.trim();
+                if (row.isEmpty() || row.startsWith("#")) {
+                    continue;
+                }
+                pending.put(workers.submit(() -> {
+                    try {
+                        return route(row);
+                    }
+                    catch (RuntimeException e) {
+                        return failed(row.replace(',', ' '), "", "error " + e.getMessage());
+                    }
+                }));
+            }
+            pending.put(done);
+            writer.join();
+            written = true;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted");
+        }
+        finally {
+            if (!written) {
+                // reading failed or was interrupted, so the end of input may never be queued
+                writer.interrupt();
+                joinUninterruptibly(writer);
+            }
+            workers.shutdownNow();
+        }
+        if (writing.failure != null) {
+            throw writing.failure;
+        }
+        return writing.rows;
+    }
+
+    /**
+     * Waits for thread to end, even if interrupted while waiting, and
+     * keeps the interrupt for the caller.
+     */
+    private static void joinUninterruptibly(Thread thread) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the result for one input line
+     */
+    private Row route(String row) {
+        String[] fields = row.split(",");
+        String origin;
+        String destination;
+        Point from;
+        Point to;
+        if (fields.length == 4) {
+            try {
+                from = new Point(Double.parseDouble(fields[0].trim()), Double.parseDouble(fields[1].trim()));
+                to = new Point(Double.parseDouble(fields[2].trim()), Double.parseDouble(fields[3].trim()));
+            }
+            catch (NumberFormatException e) {
+                return failed(row.replace(',', ' '), "", "bad coordinates");
+            }
+            origin = from.getLat() + " " + from.getLon();
+            destination = to.getLat() + " " + to.getLon();
+            from = myGraph.nearestPoint(from);
+            to = myGraph.nearestPoint(to);
+        }
+        else if (fields.length == 2) {
+            origin = fields[0].trim();
+            destination = fields[1].trim();
+            from = city(origin);
+            to = city(destination);
+            if (from == null || to == null) {
+                return failed(origin, destination, "unknown city " + (from == null ? origin : destination));
+            }
+        }
+        else {
+            return failed(row.replace(',', ' '), "", "expected 2 names or 4 numbers");
+        }
+
+        if (from.equals(to)) {
+            return new Row(origin + "," + destination + ",0.0,0,ok"
+                           + (myGeometry ? "," + from.getLat() + " " + from.getLon() : ""), true);
+        }
+        if (!myGraph.connected(from, to)) {
+            return failed(origin, destination, "no route");
+        }
+        GraphProcessor.RouteResult path = myGraph.routeResult(from, to);
+        StringBuilder line = new StringBuilder();
+        line.append(origin).append(',').append(destination).append(',')
+            .append(path.getDistance()).append(',').append(path.size() - 1).append(",ok");
+        if (myGeometry) {
+            line.append(',');
+            GraphProcessor.Coordinates c = path.coordinates();
+            for (int i = 0; c.next(); i++) {
+                if (i > 0) {
+                    line.append(';');
+                }
+                line.append(c.lat()).append(' ').append(c.lon());
+            }
+        }
+        return new Row(line.toString(), true);
+    }
+
+    private Row failed(String origin, String destination, String status) {
+        return new Row(origin + "," + destination + ",,," + status.replace(',', ' ') + (myGeometry ? "," : ""), false);
+    }
+
+    /**
+     * One output line, and whether it has a distance.
+     */
+    private static final class Row {
+        final String line;
+        final boolean routed;
+
+        Row(String line, boolean routed) {
+            this.line = line;
+            this.routed = routed;
+        }
+    }
+
+    /**
+     * @return the graph point nearest the named city, or null for a
+     * name not in the table
+     */
+    private Point city(String name) {
+        Point snapped = mySnapped.get(name);
+        if (snapped == null) {
+            Point p = myCities.get(name);
+            if (p == null) {
+                return null;
+            }
+            snapped = myGraph.nearestPoint(p);
+            mySnapped.put(name, snapped);
+        }
+        return snapped;
+    }
+
+    /**
+     * Writes results in input order as each finishes, and every few
+     * seconds reports how many are done and how fast.
+     */
+    private final class Writing implements Runnable {
+        private final BlockingQueue<Future<Row>> myPending;
+        private final Writer myOut;
+        private final PrintStream myLog;
+        long rows;
+        volatile IOException failure;
+
+        Writing(BlockingQueue<Future<Row>> pending, Writer out, PrintStream log) {
+            myPending = pending;
+            myOut = out;
+            myLog = log;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            long lastReport = start;
+            long failed = 0;
+            try {
+                myOut.write("origin,destination,distance,hops,status" + (myGeometry ? ",geometry" : "") + "\n");
+                while (true) {
+                    Row row = myPending.take().get();
+                    if (row == null) {
+                        break;
+                    }
+                    myOut.write(row.line);
+                    myOut.write('\n');
+                    rows++;
+                    if (!row.routed) {
+                        failed++;
+                    }
+                    long now = System.nanoTime();
+                    if (now - lastReport > REPORT_NANOS) {
+                        lastReport = now;
+                        myLog.printf("%d pairs, %d without a distance, %.0f pairs/s\n", rows, failed,
+                                     rows / ((now - start) / 1e9));
+                    }
+                }
+                myOut.flush();
+                double seconds = (System.nanoTime() - start) / 1e9;
+                myLog.printf("done: %d pairs, %d without a distance, in %.1f s, %.0f pairs/s\n", rows, failed,
+                             seconds, rows / seconds);
+            }
+            catch (IOException e) {
+                failure = e;
+                drain();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            catch (ExecutionException e) {
+                failure = new IOException("routing failed", e.getCause());
+                drain();
+            }
+        }
+
+        // keeps the reader from blocking on a full queue once writing has failed
+        private void drain() {
+            try {
+                while (true) {
+                    Future<Row> next = myPending.take();
+                    try {
+                        if (next.get() == null) {
+                            return;
+                        }
+                    }
+                    catch (ExecutionException e) {
+                        // discarded anyway
+                    }
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("usage: java BatchRouter od.csv results.csv [file.graph] [threads] [search mode] [geometry]");
+            return;
+        }
+        String filename = args.length > 2 ? args[2] : "data/usa.graph";
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        GraphProcessor gp = new GraphProcessor();
+        gp.initialize(new FileInputStream(filename));
+        if (args.length > 4) {
+            GraphProcessor.SearchMode mode = GraphProcessor.SearchMode.valueOf(args[4]);
+            if (mode == GraphProcessor.SearchMode.CONTRACTION_HIERARCHY) {
+                gp.prepareContractionHierarchy(filename + ".ch");
+            }
+            else if (mode == GraphProcessor.SearchMode.LANDMARKS) {
+                gp.prepareLandmarks(16, GraphProcessor.LandmarkStrategy.AVOID, filename + ".alt");
+            }
+            gp.setSearchMode(mode);
+        }
+        boolean geometry = args.length > 5 && args[5].equals("geometry");
+        BatchRouter router = new BatchRouter(gp.freeze(), GraphDemo.readCities("data/uscities.csv"),
+                                             threads, geometry);
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                 new FileInputStream(args[0]), StandardCharsets.UTF_8));
+             Writer out = new BufferedWriter(new OutputStreamWriter(
+                 new FileOutputStream(args[1]), StandardCharsets.UTF_8))) {
+            router.run(in, out, System.err);
+        }
+    }
+}
@@ -0,0 +1,1421 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Command-line timing harness for GraphProcessor. Each mode compares the
+ * current implementation against Baseline, a copy of the original
+ * HashMap-based GraphProcessor, on a .graph file. Since usa.graph is
+ * large, the synthetic mode writes a road-like grid graph of any size
+ * inside the continental US bounds for scaling runs.
+ *
+ * Usage: java GraphBenchmark mode [args], where mode is one of
+ *   load file.graph                 parse time and throughput
+ *   snapshot file.graph             text load against snapshot open
+ *   memory file.graph               retained heap after loading
+ *   routes file.graph [pairs]       route latency on random vertex pairs
+ *   weights file.graph              search throughput per weight storage
+ *   modes file.graph [pairs]        settled vertices and latency per search mode
+ *   ch file.graph [pairs]           contraction hierarchy build and queries
+ *   alt file.graph [pairs]          landmark build and queries per count
+ *   nearest file.graph [points]     nearestPoint against a linear scan
+ *   knn file.graph [points]         nearestPoints and pointsWithin against a scan
+ *   snap file.graph [points]        snapToEdge against a scan, routes between snaps
+ *   batch file.graph [points]       nearestPointBatch against one nearestPoint at a time
+ *   scan file.graph [points]        nearestPoint per NearestIndex against the HashMap scan
+ *   alloc file.graph [pairs]        bytes allocated per route in each search mode
+ *   threads file.graph [pairs]      route and nearestPoint throughput per thread count
+ *   server file.graph [requests] [clients]  RouteServer latency percentiles under load
+ *   cache file.graph [queries]      route latency and hit rate with the route cache
+ *   result file.graph [pairs]       RouteResult distance and coordinates against Point lists
+ *   matrix file.graph [sources] [targets]  distanceMatrix between uscities.csv cities
+ *   isochrone file.graph [sources]  shortestPathTree and isochrone cost per budget
+ *   delta file.graph [sources]      delta-stepping per delta and thread count against Dijkstra
+ *   via file.graph [stops]          routeVia against snapping and routing leg by leg
+ *   synthetic file.graph vertices   write a synthetic graph
+ */
+public class GraphBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("usage: java GraphBenchmark load|snapshot|memory|routes|weights|modes|ch|alt|nearest|knn|snap|batch|scan|alloc|threads|server|cache|result|matrix|isochrone|delta|via|synthetic ...");
+            return;
+        }
+        switch (args[0]) {
+            case "load":
+                benchmarkLoad(arg(args, 1, "data/usa.graph"));
+                break;
+            case "snapshot":
+                benchmarkSnapshot(arg(args, 1, "data/usa.graph"));
+                break;
+            case "memory":
+                benchmarkMemory(arg(args, 1, "data/usa.graph"));
+                break;
+            case "routes":
+                benchmarkRoutes(arg(args, 1, "data/usa.graph"),
+                                Integer.parseInt(arg(args, 2, "100")));
+                break;
+            case "weights":
+                benchmarkWeights(arg(args, 1, "data/usa.graph"));
+                break;
+            case "modes":
+                benchmarkModes(arg(args, 1, "data/usa.graph"),
+                               Integer.parseInt(arg(args, 2, "50")));
+                break;
+            case "ch":
+                benchmarkHierarchy(arg(args, 1, "data/usa.graph"),
+                                   Integer.parseInt(arg(args, 2, "1000")));
+                break;
+            case "alt":
+                benchmarkLandmarks(arg(args, 1, "data/usa.graph"),
+                                   Integer.parseInt(arg(args, 2, "500")));
+                break;
+            case "nearest":
+                benchmarkNearest(arg(args, 1, "data/usa.graph"),
+                                 Integer.parseInt(arg(args, 2, "2000")));
+                break;
+            case "knn":
+                benchmarkNeighbors(arg(args, 1, "data/usa.graph"),
+                                   Integer.parseInt(arg(args, 2, "500")));
+                break;
+            case "snap":
+                benchmarkSnap(arg(args, 1, "data/usa.graph"),
+                              Integer.parseInt(arg(args, 2, "2000")));
+                break;
+            case "batch":
+                benchmarkBatch(arg(args, 1, "data/usa.graph"),
+                               Integer.parseInt(arg(args, 2, "1000000")));
+                break;
+            case "scan":
+                benchmarkScan(arg(args, 1, "data/durham.graph"),
+                              Integer.parseInt(arg(args, 2, "20000")));
+                break;
+            case "alloc":
+                benchmarkAllocation(arg(args, 1, "data/usa.graph"),
+                                    Integer.parseInt(arg(args, 2, "200")));
+                break;
+            case "threads":
+                benchmarkThreads(arg(args, 1, "data/usa.graph"),
+                                 Integer.parseInt(arg(args, 2, "2000")));
+                break;
+            case "server":
+                benchmarkServer(arg(args, 1, "data/usa.graph"),
+                                Integer.parseInt(arg(args, 2, "5000")),
+                                Integer.parseInt(arg(args, 3, "64")));
+                break;
+            case "cache":
+                benchmarkCache(arg(args, 1, "data/usa.graph"),
+                               Integer.parseInt(arg(args, 2, "20000")));
+                break;
+            case "result":
+                benchmarkResult(arg(args, 1, "data/usa.graph"),
+                                Integer.parseInt(arg(args, 2, "2000")));
+                break;
+            case "matrix":
+                benchmarkMatrix(arg(args, 1, "data/usa.graph"),
+                                Integer.parseInt(arg(args, 2, "100")),
+                                Integer.parseInt(arg(args, 3, "1000")));
+                break;
+            case "isochrone":
+                benchmarkIsochrone(arg(args, 1, "data/usa.graph"),
+                                   Integer.parseInt(arg(args, 2, "20")));
+                break;
+            case "delta":
+                benchmarkDeltaStepping(arg(args, 1, "data/usa.graph"),
+                                       Integer.parseInt(arg(args, 2, "5")));
+                break;
+            case "via":
+                benchmarkVia(arg(args, 1, "data/usa.graph"),
+                             Integer.parseInt(arg(args, 2, "200")));
+                break;
+            case "synthetic":
+                writeSynthetic(arg(args, 1, "synthetic.graph"),
+                               Integer.parseInt(arg(args, 2, "8563700")), 201);
+                break;
+            default:
+                System.out.printf("unknown mode %s\n", args[0]);
+        }
+    }
+
+    private static String arg(String[] args, int index, String fallback) {
+        return index < args.length ? args[index] : fallback;
+    }
+
+    /**
+     * Times Scanner-based loading against GraphProcessor.initialize, best
+     * of several runs each, and checks both produce the same adjacency.
+     */
+    public static void benchmarkLoad(String filename) throws IOException {
+        long size = new File(filename).length();
+        int runs = 5;
+        long bestBaseline = Long.MAX_VALUE;
+        long bestCurrent = Long.MAX_VALUE;
+        Baseline base = null;
+        GraphProcessor gp = null;
+        for (int i = 0; i < runs; i++) {
+            long start = System.nanoTime();
+            base = new Baseline();
+            base.initialize(new FileInputStream(filename));
+            bestBaseline = Math.min(bestBaseline, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            gp = new GraphProcessor();
+            gp.initialize(new FileInputStream(filename));
+            bestCurrent = Math.min(bestCurrent, System.nanoTime() - start);
+        }
+        System.out.printf("%s: %.1f MB\n", filename, size / 1e6);
+        report("baseline initialize", bestBaseline, size);
+        report("current initialize", bestCurrent, size);
+        report("current parse only", gp.getLoadNanos(), gp.getLoadBytes());
+        System.out.printf("speedup %.1fx\n", (double) bestBaseline / bestCurrent);
+
+        GraphProcessor.GraphData data =
+            new GraphProcessor.GraphParser(new FileInputStream(filename).getChannel()).parse();
+        for (int i = 0; i < data.numVertices; i++) {
+            if (!base.myPoints[i].equals(new Point(data.lat[i], data.lon[i]))) {
+                throw new IllegalStateException("vertex " + i + " parsed differently");
+            }
+        }
+        System.out.println("parsed vertices match Scanner/parseDouble exactly");
+    }
+
+    /**
+     * Writes a snapshot of the graph to a temporary file and times
+     * reopening it against parsing the text, checking both give the
+     * same answers for a few nearest point queries.
+     */
+    public static void benchmarkSnapshot(String filename) throws IOException {
+        File snapshot = File.createTempFile("graph", ".snapshot");
+        snapshot.deleteOnExit();
+        GraphProcessor text = new GraphProcessor();
+        text.initialize(new FileInputStream(filename));
+        text.saveSnapshot(snapshot.getPath());
+
+        int runs = 5;
+        long bestText = Long.MAX_VALUE;
+        long bestSnapshot = Long.MAX_VALUE;
+        GraphProcessor mapped = null;
+        for (int i = 0; i < runs; i++) {
+            long start = System.nanoTime();
+            text = new GraphProcessor();
+            text.initialize(new FileInputStream(filename));
+            bestText = Math.min(bestText, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            mapped = new GraphProcessor();
+            mapped.initializeSnapshot(new FileInputStream(snapshot));
+            bestSnapshot = Math.min(bestSnapshot, System.nanoTime() - start);
+        }
+        System.out.printf("%s: %.1f MB text, %.1f MB snapshot\n", filename,
+                          new File(filename).length() / 1e6, snapshot.length() / 1e6);
+        report("text initialize", bestText, new File(filename).length());
+        report("snapshot initialize", bestSnapshot, snapshot.length());
+        System.out.printf("speedup %.1fx\n", (double) bestText / bestSnapshot);
+
+        Random rand = new Random(1);
+        for (int i = 0; i < 20; i++) {
+            Point p = new Point(25 + 24 * rand.nextDouble(), -124 + 57 * rand.nextDouble());
+            if (!text.nearestPoint(p).equals(mapped.nearestPoint(p))) {
+                throw new IllegalStateException("snapshot answers differ at " + p);
+            }
+        }
+        System.out.println("snapshot answers match text graph");
+    }
+
+    /**
+     * Reports how much heap each implementation keeps after loading,
+     * measured as used heap after a full collection.
+     */
+    public static void benchmarkMemory(String filename) throws IOException {
+        long before = usedHeap();
+        Baseline base = new Baseline();
+        base.initialize(new FileInputStream(filename));
+        long baseline = usedHeap() - before;
+        java.lang.ref.Reference.reachabilityFence(base);
+        base = null;
+
+        before = usedHeap();
+        GraphProcessor gp = new GraphProcessor();
+        gp.initialize(new FileInputStream(filename));
+        long current = usedHeap() - before;
+        System.out.printf("%s: baseline %.1f MB, current %.1f MB (%.1fx smaller)\n", filename,
+                          baseline / 1e6, current / 1e6, (double) baseline / current);
+        java.lang.ref.Reference.reachabilityFence(gp);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Routes between random pairs of vertices with both implementations
+     * and checks the current routes are no longer than the baseline's.
+     */
+    public static void benchmarkRoutes(String filename, int pairs) throws IOException {
+        Baseline base = new Baseline();
+        base.initialize(new FileInputStream(filename));
+        GraphProcessor gp = new GraphProcessor();
+        gp.initialize(new FileInputStream(filename));
+        List<Point[]> queries = randomPairs(base, pairs, 7);
+
+        long baseNanos = 0;
+        long currentNanos = 0;
+        long baseBytes = 0;
+        long currentBytes = 0;
+        for (Point[] q : queries) {
+            long bytes = allocatedBytes();
+            long start = System.nanoTime();
+            List<Point> path = base.route(q[0], q[1]);
+            baseNanos += System.nanoTime() - start;
+            baseBytes += allocatedBytes() - bytes;
+            double expected = gp.routeDistance(path);
+
+            bytes = allocatedBytes();
+            start = System.nanoTime();
+            path = gp.route(q[0], q[1]);
+            currentNanos += System.nanoTime() - start;
+            currentBytes += allocatedBytes() - bytes;
+            checkDistance(expected, gp.routeDistance(path), q);
+        }
+        int n = queries.size();
+        System.out.printf("%d routes on %s\n", n, filename);
+        System.out.printf("baseline %8.3f ms/route %10.1f KB/route\n",
+                          baseNanos / 1e6 / n, baseBytes / 1e3 / n);
+        System.out.printf("current  %8.3f ms/route %10.1f KB/route\n",
+                          currentNanos / 1e6 / n, currentBytes / 1e3 / n);
+        System.out.printf("speedup %.1fx\n", (double) baseNanos / currentNanos);
+    }
+
+    /**
+     * Measures bytes allocated per route in each search mode once the
+     * thread's search arrays exist, next to the bytes per point of the
+     * returned path, which is all a route should need to allocate.
+     */
+    public static void benchmarkAllocation(String filename, int pairs) throws IOException {
+        Baseline base = new Baseline();
+        base.initialize(new FileInputStream(filename));
+        GraphProcessor gp = new GraphProcessor();
+        gp.initialize(new FileInputStream(filename));
+        gp.prepareContractionHierarchy();
+        gp.prepareLandmarks(16, GraphProcessor.LandmarkStrategy.AVOID);
+        List<Point[]> queries = randomPairs(base, pairs, 41);
+
+        System.out.printf("%d routes on %s\n", queries.size(), filename);
+        for (GraphProcessor.SearchMode mode : GraphProcessor.SearchMode.values()) {
+            for (Point[] q : queries) { // warm up, making the search arrays
+                gp.route(q[0], q[1], mode);
+            }
+            long points = 0;
+            long bytes = allocatedBytes();
+            for (Point[] q : queries) {
+                points += gp.route(q[0], q[1], mode).size();
+            }
+            bytes = allocatedBytes() - bytes;
+            System.out.printf("%-22s %10.1f bytes/route %6.1f bytes/path point\n", mode,
+                              (double) bytes / queries.size(), (double) bytes / points);
+        }
+    }
+
+    /**
+     * Shares one FrozenGraph between 1, 2, 4, ... threads up to twice
+     * the processor count, each taking the next query until all are
+     * done, and reports queries per second and the speedup over one
+     * thread. Each query snaps two random points with nearestPoint and
+     * routes between them by contraction hierarchy; every route must
+     * match its single-threaded length exactly.
+     */
+    public static void benchmarkThreads(String filename, int pairs) throws IOException {
+        GraphProcessor gp = new GraphProcessor();
+        gp.initialize(new FileInputStream(filename));
+        gp.prepareContractionHierarchy();
+        gp.setSearchMode(GraphProcessor.SearchMode.CONTRACTION_HIERARCHY);
+        GraphProcessor.FrozenGraph graph = gp.freeze();
+        Baseline base = new Baseline();
+        base.initialize(new FileInputStream(filename));
+        Point[] points = randomPoints(base, 2 * pairs, 43);
+        double[] expected = new double[pairs];
+        for (int i = 0; i < pairs; i++) {
+            expected[i] = routeLength(graph, points[2 * i], points[2 * i + 1]);
+        }
+
+        int processors = Runtime.getRuntime().availableProcessors();
+        System.out.printf("%d queries on %s, %d processors\n", pairs, filename, processors);
+        double single = 0;
+        for (int threads = 1; threads <= 2 * processors; threads *= 2) {
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            AtomicInteger next = new AtomicInteger();
+            List<Callable<Void>> workers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                workers.add(() -> {
+                    for (int i = next.getAndIncrement(); i < pairs; i = next.getAndIncrement()) {
+                        double length = routeLength(graph, points[2 * i], points[2 * i + 1]);
+                        if (length != expected[i]) {
+                            throw new IllegalStateException("query " + i + " changed under threads");
+                        }
+                    }
+                    return null;
+                });
+            }
+            long start = System.nanoTime();
+            try {
+                for (Future<Void> done : pool.invokeAll(workers)) {
+                    done.get();
+                }
+            }
+            catch (InterruptedException | ExecutionException e) {
+                throw new IllegalStateException(e);
+            }
+            finally {
+                pool.shutdown();
+            }
+            double perSecond = pairs / ((System.nanoTime() - start) / 1e9);
+            if (threads == 1) {
+                single = perSecond;
+            }
+            System.out.printf("%3d threads %12.0f queries/s %6.2fx\n", threads, perSecond, perSecond / single);
+        }
+    }
+
+    /**
+     * Starts a RouteServer on a free local port and sends it requests
+     * from many client threads at once, three /route requests between
+     * random points for each /nearest, /connected and /distance, and
+     * reports throughput and the 50th, 99th and largest latencies.
+     * Routes use the contraction hierarchy, as a server would.
+     */
+    public static void benchmarkServer(String filename, int requests, int clients) throws IOException {
+        GraphProcessor gp = new GraphProcessor();
+        gp.initialize(new FileInputStream(filename));
+        gp.prepareContractionHierarchy();
+        gp.setSearchMode(GraphProcessor.SearchMode.CONTRACTION_HIERARCHY);
+        RouteServer server = new RouteServer(gp.freeze(), 0, Runtime.getRuntime().availableProcessors());
+        server.start();
+        Baseline base = new Baseline();
+        base.initialize(new FileInputStream(filename));
+        Point[] points = randomPoints(base, 2 * requests, 47);
+        String[] paths = {"/route", "/route", "/route", "/nearest", "/connected", "/distance"};
+        String[] urls = new String[requests];
+        for (int i = 0; i < requests; i++) {
+            String path = paths[i % paths.length];
+            String from = points[2 * i].getLat() + "," + points[2 * i].getLon();
+            String to = points[2 * i + 1].getLat() + "," + points[2 * i + 1].getLon();
+            urls[i] = "http://localhost:" + server.getPort() + path
+                      + (path.equals("/nearest") ? "?point=" + from : "?from=" + from + "&to=" + to);
+        }
+
+        long[] nanos = new long[requests];
+        int[] status = new int[requests];
+        AtomicInteger next = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        List<Callable<Void>> workers = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            workers.add(() -> {
+                for (int i = next.getAndIncrement(); i < requests; i = next.getAndIncrement()) {
+                    long start = System.nanoTime();
+                    java.net.HttpURLConnection connection =
+                        (java.net.HttpURLConnection) new java.net.URL(urls[i]).openConnection();
+                    status[i] = connection.getResponseCode();
+                    try (InputStream in = status[i] < 400 ? connection.getInputStream()
+                                                          : connection.getErrorStream()) {
+                        in.readAllBytes();
+                    }
+                    nanos[i] = System.nanoTime() - start;
+                }
+                return null;
+            });
+        }
+        long start = System.nanoTime();
+        try {
+            for (Future<Void> done : pool.invokeAll(workers)) {
+                done.get();
+            }
+        }
+        catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+        finally {
+            pool.shutdown();
+            server.stop();
+        }
+        long total = System.nanoTime() - start;
+
+        int failed = 0;
+        for (int code : status) {
+            if (code != 200 && code != 404) {
+                failed++;
+            }
+        }
+        Arrays.sort(nanos);
+        System.out.printf("%d requests from %d clients on %s, %d failed\n", requests, clients, filename, failed);
+        System.out.printf("throughput %10.0f requests/s\n", requests / (total / 1e9));
+        System.out.printf("p50 %8.2f ms  p99 %8.2f ms  max %8.2f ms\n", nanos[requests / 2] / 1e6,
+                          nanos[(int) (requests * 0.99)] / 1e6, nanos[requests - 1] / 1e6);
+    }
+
+    /**
+     * Routes a skewed stream of queries over 1000 popular pairs, a few
+     * asked for far more often than the rest and each in either
+     * direction at random, with and without the route cache, checking
+     * cached routes have the same length.
+     */
+    public static void benchmarkCache(String filename, int queries) throws IOException {
+        Baseline base = new Baseline();
+        base.initialize(new FileInputStream(filename));
+        List<Point[]> pairs = randomPairs(base, 1000, 53);
+        Random rand = new Random(59);
+        Point[][] stream = new Point[queries][];
+        for (int i = 0; i < queries; i++) {
+            // pair k is asked for about 1 / (k + 1) as often as pair 0
+            int k = (int) Math.floor(Math.pow(pairs.size() + 1, rand.nextDouble())) - 1;
+            Point[] pair = pairs.get(Math.min(k, pairs.size() - 1));
+            stream[i] = rand.nextBoolean() ? pair : new Point[] {pair[1], pair[0]};
+        }
+
+        GraphProcessor gp = new GraphProcessor();
+        gp.initialize(new FileInputStream(filename));
+        double[] expected = new double[queries];
+        long start = System.nanoTime();
+        for (int i = 0; i < queries; i++) {
+            expected[i] = gp.routeDistance(gp.route(stream[i][0], stream[i][1]));
+        }
+        long plainNanos = System.nanoTime() - start;
+
+        gp.setRouteCache(200, 64L << 20);
+        start = System.nanoTime();
+        for (int i = 0; i < queries; i++) {
+            checkDistance(expected[i], gp.routeDistance(gp.route(stream[i][0], stream[i][1])), stream[i]);
+        }
+        long cachedNanos = System.nanoTime() - start;
+        long hits = gp.getRouteCacheHits();
+        System.out.printf("%d queries over %d pairs on %s\n", queries, pairs.size(), filename);
+        System.out.printf("no cache          %8.3f ms/route\n", plainNanos / 1e6 / queries);
+        System.out.printf("200-route cache   %8.3f ms/route, %.1f%% hits, %d routes kept\n",
+                          cachedNanos / 1e6 / queries, 100.0 * hits / queries, gp.getRouteCacheSize());
+    }
+
+    /**
+     * Routes random pairs by contraction hierarchy, so the search is
+     * small next to the path, and compares the time and bytes to get
+     * each route's length and walk its coordinates from a RouteResult
+     * against a List<Point> copied out of it and summed leg by leg.
+     */
+    public static void benchmarkResult(String filename, int pairs) throws IOException {
+        Baseline base = new Baseline();
+        base.initialize(new FileInputStream(filename));
+        GraphProcessor gp = new GraphProcessor();
+        gp.initialize(new FileInputStream(filename));
+        gp.prepareContractionHierarchy();
+        gp.setSearchMode(GraphProcessor.SearchMode.CONTRACTION_HIERARCHY);
+        List<Point[]> queries = randomPairs(base, pairs, 61);
+        for (Point[] q : queries) { // warm up, making the search arrays
+            gp.routeResult(q[0], q[1]);
+        }
+
+        long points = 0;
+        double check = 0;
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+        for (Point[] q : queries) {
+            GraphProcessor.RouteResult result = gp.routeResult(q[0], q[1]);
+            points += result.size();
+            check += result.getDistance();
+            GraphProcessor.Coordinates c = result.coordinates();
+            while (c.next()) {
+                check += c.lat() * 0.0;
+            }
+        }
+        long resultNanos = System.nanoTime() - start;
+        long resultBytes = allocatedBytes() - bytes;
+
+        double listCheck = 0;
+        bytes = allocatedBytes();
+        start = System.nanoTime();
+        for (Point[] q : queries) {
+            List<Point> path = new ArrayList<>(gp.routeResult(q[0], q[1]).points());
+            double d = 0;
+            for (int i = 1; i < path.size(); i++) {
+                d += path.get(i - 1).distance(path.get(i));
+            }
+            listCheck += d;
+            for (Point p : path) {
+                listCheck += p.getLat() * 0.0;
+            }
+        }
+        long listNanos = System.nanoTime() - start;
+        long listBytes = allocatedBytes() - bytes;
+        if (Math.abs(check - listCheck) > 1e-6 * listCheck) {
+            System.out.printf("MISMATCH: total %.6f against %.6f\n", check, listCheck);
+        }
+
+        int n = queries.size();
+        System.out.printf("%d routes, %.0f points each, on %s\n", n, (double) points / n, filename);
+        System.out.printf("RouteResult %8.3f ms/route %10.1f bytes/route\n",
+                          resultNanos / 1e6 / n, (double) resultBytes / n);
+        System.out.printf("List<Point> %8.3f ms/route %10.1f bytes/route\n",
+                          listNanos / 1e6 / n, (double) listBytes / n);
+    }
+
+    /**
+     * Picks random source and target cities from data/uscities.csv and
+     * times distanceMatrix between them, reporting cells per second,
+     * then times route for a sample of the cells to compare, checking
+     * each sampled cell against its route's length.
+     */
+    public static void benchmarkMatrix(String filename, int sources, int targets) throws IOException {
+        List<Point> cities = new ArrayList<>(GraphDemo.readCities("data/uscities.csv").values());
+        Collections.shuffle(cities, new Random(67));
+        List<Point> from = cities.subList(0, sources);
+        List<Point> to = cities.subList(sources, sources + targets);
+        GraphProcessor gp = new GraphProcessor();
+        gp.initialize(new FileInputStream(filename));
+        gp.distanceMatrix(from.subList(0, 1), to); // build the k-d tree
+
+        long start = System.nanoTime();
+        double[][] matrix = gp.distanceMatrix(from, to);
+        long matrixNanos = System.nanoTime() - start;
+        long cells = (long) sources * targets;
+        System.out.printf("%d x %d cities on %s, %d threads\n", sources, targets, filename,
+                          ForkJoinPool.commonPool().getParallelism());
+        System.out.printf("distanceMatrix %9.1f ms %12.0f cells/s\n",
+                          matrixNanos / 1e6, cells / (matrixNanos / 1e9));
+
+        Random rand = new Random(71);
+        int sample = 200;
+        int routed = 0;
+        start = System.nanoTime();
+        for (int k = 0; k < sample; k++) {
+            int i = rand.nextInt(sources);
+            int j = rand.nextInt(targets);
+            Point a = gp.nearestPoint(from.get(i));
+            Point b = gp.nearestPoint(to.get(j));
+            double expected = 0;
+            if (!a.equals(b)) {
+                expected = gp.connected(a, b) ? gp.routeResult(a, b).getDistance() : Double.POSITIVE_INFINITY;
+                routed++;
+            }
+            if (Math.abs(matrix[i][j] - expected) > 1e-6 * expected) {
+                throw new IllegalStateException(String.format(
+                    "cell %s to %s is %f, route is %f", a, b, matrix[i][j], expected));
+            }
+        }
+        long routeNanos = System.nanoTime() - start;
+        System.out.printf("route per cell %9.1f ms %12.0f cells/s (%d sampled, %d routed)\n",
+                          routeNanos / 1e6, sample / (routeNanos / 1e9), sample, routed);
+    }
+
+    /**
+     * Grows shortest path trees from random cities to budgets of 10 to
+     * 1000 miles and without one, reporting the points in reach and the
+     * time for the tree and for the isochrone built on it, to show the
+     * search cost follows the budget rather than the component.
+     */
+    public static void benchmarkIsochrone(String filename, int sources) throws IOException {
+        GraphProcessor gp = new GraphProcessor();
+        gp.initialize(new FileInputStream(filename));
+        List<Point> cities = new ArrayList<>(GraphDemo.readCities("data/uscities.csv").values());
+        Collections.shuffle(cities, new Random(73));
+        List<Point> from = gp.nearestPointBatch(cities.subList(0, sources));
+        gp.shortestPathTree(from.get(0), 10); // make the search arrays
+
+        System.out.printf("%d sources on %s\n", sources, filename);
+        for (double miles : new double[] {10, 30, 100, 300, 1000, Double.POSITIVE_INFINITY}) {
+            long reached = 0;
+            long corners = 0;
+            long treeNanos = 0;
+            long hullNanos = 0;
+            for (Point p : from) {
+                long start = System.nanoTime();
+                GraphProcessor.ShortestPathTree tree = gp.shortestPathTree(p, miles);
+                treeNanos += System.nanoTime() - start;
+                reached += tree.size();
+                start = System.nanoTime();
+                corners += gp.isochrone(p, miles).getBoundary().size();
+                hullNanos += System.nanoTime() - start;
+            }
+            System.out.printf("%8.0f miles %10.0f points %8.3f ms/tree %8.3f ms/isochrone %6.1f corners\n",
+                              miles, (double) reached / sources, treeNanos / 1e6 / sources,
+                              hullNanos / 1e6 / sources, (double) corners / sources);
+        }
+    }
+
+    /**
+     * Times distancesFrom random cities with Dijkstra, then by
+     * delta-stepping for several deltas in pools of 1, 2, 4, ... threads
+     * up to the processor count, reporting the speedup over Dijkstra.
+     * Every delta-stepping result must equal Dijkstra's exactly.
+     */
+    public static void benchmarkDeltaStepping(String filename, int sources) throws IOException {
+        GraphProcessor gp = new GraphProcessor();
+        gp.initialize(new FileInputStream(filename));
+        List<Point> cities = new ArrayList<>(GraphDemo.readCities("data/uscities.csv").values());
+        Collections.shuffle(cities, new Random(79));
+        List<Point> from = gp.nearestPointBatch(cities.subList(0, sources));
+
+        List<double[]> expected = new ArrayList<>();
+        long start = System.nanoTime();
+        for (Point p : from) {
+            expected.add(gp.distancesFrom(p));
+        }
+        long dijkstraNanos = System.nanoTime() - start;
+        System.out.printf("%d sources on %s\n", sources, filename);
+        System.out.printf("Dijkstra                    %9.1f ms/source\n", dijkstraNanos / 1e6 / sources);
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (double delta : new double[] {0.5, 2, 8, 32}) {
+            for (int threads = 1; threads <= cores; threads *= 2) {
+                ForkJoinPool pool = new ForkJoinPool(threads);
+                long nanos = 0;
+                try {
+                    for (int i = 0; i < sources; i++) {
+                        Point p = from.get(i);
+                        start = System.nanoTime();
+                        double[] dist = pool.submit(() -> gp.distancesFrom(p, delta)).get();
+                        nanos += System.nanoTime() - start;
+                        if (!Arrays.equals(expected.get(i), dist)) {
+                            throw new IllegalStateException("delta-stepping differs from Dijkstra from " + p);
+                        }
+                    }
+                }
+                catch (InterruptedException | ExecutionException e) {
+                    throw new IllegalStateException(e);
+                }
+                finally {
+                    pool.shutdown();
+                }
+                System.out.printf("delta %5.1f, %3d threads %9.1f ms/source %6.2fx\n", delta, threads,
+                                  nanos / 1e6 / sources, (double) dijkstraNanos / nanos);
+            }
+        }
+    }
+
+    /**
+     * Routes a tour of random cities, from a nearby cluster up to all of
+     * stops, with routeVia and with nearestPoint, connected and route
+     * per leg as GraphDemo.userInteract does, best of three runs each,
+     * checking both come to the same distance.
+     */
+    public static void benchmarkVia(String filename, int stops) throws IOException {
+        GraphProcessor gp = new GraphProcessor();
+        gp.initialize(new FileInputStream(filename));
+        List<Point> cities = new ArrayList<>(GraphDemo.readCities("data/uscities.csv").values());
+        Collections.shuffle(cities, new Random(83));
+        gp.routeVia(cities.subList(0, 2)); // build the k-d tree, make the search arrays
+
+        System.out.printf("tours on %s, %d threads\n", filename, ForkJoinPool.commonPool().getParallelism());
+        for (int count = 2; count <= stops; count *= 4) {
+            List<Point> tour = cities.subList(0, count);
+            GraphProcessor.MultiStopRoute trip = null;
+            double total = 0;
+            long viaNanos = Long.MAX_VALUE;
+            long legNanos = Long.MAX_VALUE;
+            for (int run = 0; run < 3; run++) {
+                long start = System.nanoTime();
+                trip = gp.routeVia(tour);
+                viaNanos = Math.min(viaNanos, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                total = 0;
+                for (int i = 0; i + 1 < count; i++) {
+                    Point a = gp.nearestPoint(tour.get(i));
+                    Point b = gp.nearestPoint(tour.get(i + 1));
+                    if (!a.equals(b) && gp.connected(a, b)) {
+                        total += gp.routeDistance(gp.route(a, b));
+                    }
+                }
+                legNanos = Math.min(legNanos, System.nanoTime() - start);
+            }
+            if (Math.abs(total - trip.getDistance()) > 1e-6 * total) {
+                throw new IllegalStateException(String.format(
+                    "tour of %d is %f by routeVia, %f by legs", count, trip.getDistance(), total));
+            }
+            System.out.printf("%4d stops %10.0f miles %7d points  routeVia %9.1f ms  by leg %9.1f ms\n",
+                              count, trip.getDistance(), trip.getRoute().size(),
+                              viaNanos / 1e6, legNanos / 1e6);
+        }
+    }
+
+    // snaps both points and routes between them, 0 when there's no route
+    private static double routeLength(GraphProcessor.FrozenGraph graph, Point a, Point b) {
+        Point start = graph.nearestPoint(a);
+        Point end = graph.nearestPoint(b);
+        if (start.equals(end) || !graph.connected(start, end)) {
+            return 0;
+        }
+        return graph.routeResult(start, end).getDistance();
+    }
+
+    /**
+     * The endpoints routed in TestUSGraphProcessor.testRoute: Bellevue
+     * to Clyde Hill WA, Los Angeles to Sunnyvale CA, Miami FL to
+     * Portland OR. Other graphs snap them with nearestPoint.
+     */
+    static final Point[][] TEST_ROUTES = {
+        {new Point(47.578813, -122.139773), new Point(47.632292, -122.187898)},
+        {new Point(34.154423, -118.396488), new Point(37.398938, -122.02777)},
+        {new Point(25.781443, -80.206716), new Point(45.529817, -122.647848)},
+    };
+
+    /**
+     * Runs the test routes with edge lengths computed in the search
+     * loop and with lengths stored as doubles and floats, reporting
+     * settled vertices and relaxed edges per second for each.
+     */
+    public static void benchmarkWeights(String filename) throws IOException {
+        int runs = 20;
+        for (GraphProcessor.WeightStorage storage : GraphProcessor.WeightStorage.values()) {
+            GraphProcessor gp = new GraphProcessor(storage);
+            gp.initialize(new FileInputStream(filename));
+            System.out.println(storage);
+            for (Point[] q : TEST_ROUTES) {
+                Point start = gp.nearestPoint(q[0]);
+                Point end = gp.nearestPoint(q[1]);
+                long best = Long.MAX_VALUE;
+                double length = 0;
+                for (int i = 0; i < runs; i++) {
+                    long time = System.nanoTime();
+                    List<Point> path = gp.route(start, end);
+                    best = Math.min(best, System.nanoTime() - time);
+                    length = gp.routeDistance(path);
+                }
+                System.out.printf("  %-45s %8.3f ms %6.1f M settled/s %6.1f M relaxed/s %9.3f mi\n",
+                                  start + " -> " + end, best / 1e6,
+                                  gp.getSettledCount() / (best / 1e3),
+                                  gp.getRelaxedCount() / (best / 1e3), length);
+            }
+        }
+    }
+
+    /**
+     * Routes the test routes and random vertex pairs with every search
+     * mode, reporting average latency and settled vertices against
+     * DIJKSTRA and checking each route is within the 3% that
+     * TestUSGraphProcessor accepts.
+     */
+    public static void benchmarkModes(String filename, int pairs) throws IOException {
+        Baseline base = new Baseline();
+        base.initialize(new FileInputStream(filename));
+        GraphProcessor gp = new GraphProcessor();
+        gp.initialize(new FileInputStream(filename));
+        List<Point[]> queries = new ArrayList<>();
+        for (Point[] q : TEST_ROUTES) {
+            Point start = gp.nearestPoint(q[0]);
+            Point end = gp.nearestPoint(q[1]);
+            if (!start.equals(end) && gp.connected(start, end)) {
+                queries.add(new Point[] {start, end});
+            }
+        }
+        queries.addAll(randomPairs(base, pairs, 11));
+        base = null;
+
+        gp.prepareContractionHierarchy();
+        gp.prepareLandmarks(16, GraphProcessor.LandmarkStrategy.AVOID);
+        GraphProcessor.SearchMode[] modes = GraphProcessor.SearchMode.values();
+        double[] expected = new double[queries.size()];
+        long dijkstraSettled = 0;
+        for (GraphProcessor.SearchMode mode : modes) {
+            long nanos = 0;
+            long settled = 0;
+            for (int i = 0; i < queries.size(); i++) {
+                Point[] q = queries.get(i);
+                long start = System.nanoTime();
+                List<Point> path = gp.route(q[0], q[1], mode);
+                nanos += System.nanoTime() - start;
+                settled += gp.getSettledCount();
+                double length = gp.routeDistance(path);
+                if (mode == modes[0]) {
+                    expected[i] = length;
+                }
+                else if (length > expected[i] * 1.03) {
+                    throw new IllegalStateException(String.format(
+                        "%s route %s to %s is %f, expected %f", mode, q[0], q[1], length, expected[i]));
+                }
+            }
+            if (mode == modes[0]) {
+                dijkstraSettled = settled;
+            }
+            System.out.printf("%-22s %8.3f ms/route %10d settled/route (%.1f%% of %s)\n", mode,
+                              nanos / 1e6 / queries.size(), settled / queries.size(),
+                              100.0 * settled / dijkstraSettled, modes[0]);
+        }
+    }
+
+    /**
+     * Times building, saving and reloading the contraction hierarchy,
+     * then checks hierarchy routes against Dijkstra on random pairs,
+     * which must have the same length up to rounding.
+     */
+    public static void benchmarkHierarchy(String filename, int pairs) throws IOException {
+        GraphProcessor gp = new GraphProcessor();
+        gp.initialize(new FileInputStream(filename));
+        File file = File.createTempFile("graph", ".ch");
+        file.delete();
+        file.deleteOnExit();
+        long start = System.nanoTime();
+        gp.prepareContractionHierarchy(file.getPath());
+        System.out.printf("built and saved hierarchy in %.1f s (%.1f MB)\n",
+                          (System.nanoTime() - start) / 1e9, file.length() / 1e6);
+        start = System.nanoTime();
+        gp.prepareContractionHierarchy(file.getPath());
+        System.out.printf("reloaded hierarchy in %.1f ms\n", (System.nanoTime() - start) / 1e6);
+
+        Baseline base = new Baseline();
+        base.initialize(new FileInputStream(filename));
+        List<Point[]> queries = randomPairs(base, pairs, 13);
+        base = null;
+        long dijkstraNanos = 0;
+        long hierarchyNanos = 0;
+        long dijkstraSettled = 0;
+        long hierarchySettled = 0;
+        for (Point[] q : queries) {
+            long time = System.nanoTime();
+            List<Point> expected = gp.route(q[0], q[1], GraphProcessor.SearchMode.DIJKSTRA);
+            dijkstraNanos += System.nanoTime() - time;
+            dijkstraSettled += gp.getSettledCount();
+
+            time = System.nanoTime();
+            List<Point> actual = gp.route(q[0], q[1], GraphProcessor.SearchMode.CONTRACTION_HIERARCHY);
+            hierarchyNanos += System.nanoTime() - time;
+            hierarchySettled += gp.getSettledCount();
+
+            double want = gp.routeDistance(expected);
+            double got = gp.routeDistance(actual);
+            if (Math.abs(want - got) > 1e-9 * want || !actual.get(0).equals(q[0])
+                || !actual.get(actual.size() - 1).equals(q[1])) {
+                throw new IllegalStateException(String.format(
+                    "hierarchy route %s to %s is %f, expected %f", q[0], q[1], got, want));
+            }
+        }
+        int n = queries.size();
+        System.out.printf("%d random pairs match Dijkstra\n", n);
+        System.out.printf("dijkstra  %8.3f ms/route %8d settled/route\n",
+                          dijkstraNanos / 1e6 / n, dijkstraSettled / n);
+        System.out.printf("hierarchy %8.3f ms/route %8d settled/route\n",
+                          hierarchyNanos / 1e6 / n, hierarchySettled / n);
+    }
+
+    /**
+     * For several landmark counts and both strategies, reports build
+     * time, table memory, and LANDMARKS query latency and settled
+     * vertices against Dijkstra on random pairs, checking lengths.
+     */
+    public static void benchmarkLandmarks(String filename, int pairs) throws IOException {
+        GraphProcessor gp = new GraphProcessor();
+        gp.initialize(new FileInputStream(filename));
+        Baseline base = new Baseline();
+        base.initialize(new FileInputStream(filename));
+        List<Point[]> queries = randomPairs(base, pairs, 17);
+        int vertices = base.myMap.size();
+        base = null;
+        double[] expected = new double[queries.size()];
+        long nanos = 0;
+        long settled = 0;
+        for (int i = 0; i < queries.size(); i++) {
+            Point[] q = queries.get(i);
+            long start = System.nanoTime();
+            expected[i] = gp.routeDistance(gp.route(q[0], q[1], GraphProcessor.SearchMode.DIJKSTRA));
+            nanos += System.nanoTime() - start;
+            settled += gp.getSettledCount();
+        }
+        int n = queries.size();
+        System.out.printf("%-18s %8s %8s %8.3f ms/route %8d settled/route\n", "DIJKSTRA", "", "",
+                          nanos / 1e6 / n, settled / n);
+        for (GraphProcessor.LandmarkStrategy strategy : GraphProcessor.LandmarkStrategy.values()) {
+            for (int count : new int[] {4, 8, 16, 32}) {
+                long start = System.nanoTime();
+                gp.prepareLandmarks(count, strategy);
+                long build = System.nanoTime() - start;
+                nanos = 0;
+                settled = 0;
+                for (int i = 0; i < n; i++) {
+                    Point[] q = queries.get(i);
+                    start = System.nanoTime();
+                    List<Point> path = gp.route(q[0], q[1], GraphProcessor.SearchMode.LANDMARKS);
+                    nanos += System.nanoTime() - start;
+                    settled += gp.getSettledCount();
+                    double length = gp.routeDistance(path);
+                    if (Math.abs(length - expected[i]) > 1e-6 * expected[i]) {
+                        throw new IllegalStateException(String.format(
+                            "landmark route %s to %s is %f, expected %f", q[0], q[1], length, expected[i]));
+                    }
+                }
+                System.out.printf("%-8s %3d marks %6.0f ms %6.1f MB %8.3f ms/route %8d settled/route\n",
+                                  strategy, count, build / 1e6, 4.0 * count * vertices / 1e6,
+                                  nanos / 1e6 / n, settled / n);
+            }
+        }
+    }
+
+    /**
+     * Times nearestPoint against the original scan over every vertex
+     * for random points in the graph's bounding box, checking both find
+     * a vertex at the same distance.
+     */
+    public static void benchmarkNearest(String filename, int points) throws IOException {
+        Baseline base = new Baseline();
+        base.initialize(new FileInputStream(filename));
+        GraphProcessor gp = new GraphProcessor();
+        gp.initialize(new FileInputStream(filename));
+        Point[] queries = randomPoints(base, points, 19);
+
+        long baseNanos = 0;
+        long currentNanos = 0;
+        for (Point p : queries) {
+            long start = System.nanoTime();
+            Point expected = base.nearestPoint(p);
+            baseNanos += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            Point actual = gp.nearestPoint(p);
+            currentNanos += System.nanoTime() - start;
+            if (p.distance(actual) != p.distance(expected)) {
+                throw new IllegalStateException(String.format(
+                    "nearest to %s is %s, expected %s", p, actual, expected));
+            }
+        }
+        System.out.printf("%d points on %s, all match the linear scan\n", points, filename);
+        System.out.printf("linear scan %10.2f us/point\n", baseNanos / 1e3 / points);
+        System.out.printf("k-d tree    %10.2f us/point\n", currentNanos / 1e3 / points);
+    }
+
+    /**
+     * Times nearestPoint with each NearestIndex, and initialize with
+     * the index it builds, against the original scan over the HashMap's keys, and
+     * checks all of them find a vertex at the same distance. Run with
+     * --add-modules jdk.incubator.vector and VectorNearestScan compiled
+     * to time VECTOR_SCAN on vector lanes.
+     */
+    public static void benchmarkScan(String filename, int points) throws IOException {
+        Baseline base = new Baseline();
+        base.initialize(new FileInputStream(filename));
+        Point[] queries = randomPoints(base, points, 37);
+        Point[] expected = new Point[points];
+        long start = System.nanoTime();
+        for (int i = 0; i < points; i++) {
+            expected[i] = base.nearestPoint(queries[i]);
+        }
+        long baseNanos = System.nanoTime() - start;
+        System.out.printf("%d points on %s, vector lanes %s\n", points, filename,
+                          GraphProcessor.isVectorScanAvailable() ? "available" : "unavailable");
+        System.out.printf("%-12s %15s %10.2f us/point\n", "HashMap scan", "", baseNanos / 1e3 / points);
+
+        for (GraphProcessor.NearestIndex index : GraphProcessor.NearestIndex.values()) {
+            GraphProcessor gp = new GraphProcessor();
+            gp.setNearestIndex(index);
+            start = System.nanoTime();
+            gp.initialize(new FileInputStream(filename));
+            long loadNanos = System.nanoTime() - start;
+            for (int round = 0; round < 2; round++) { // the first round warms up
+                start = System.nanoTime();
+                for (int i = 0; i < points; i++) {
+                    Point actual = gp.nearestPoint(queries[i]);
+                    if (queries[i].distance(actual) != queries[i].distance(expected[i])) {
+                        throw new IllegalStateException(String.format("%s nearest to %s is %s, expected %s",
+                                                        index, queries[i], actual, expected[i]));
+                    }
+                }
+            }
+            long nanos = System.nanoTime() - start;
+            System.out.printf("%-12s %7.1f ms load %10.2f us/point\n", index, loadNanos / 1e6,
+                              nanos / 1e3 / points);
+        }
+    }
+
+    /**
+     * Checks nearestPoints(p, 10) and pointsWithin(p, r) against sorted
+     * distances from a scan over every vertex, with r the distance to
+     * the 50th closest vertex, and times both queries.
+     */
+    public static void benchmarkNeighbors(String filename, int points) throws IOException {
+        Baseline base = new Baseline();
+        base.initialize(new FileInputStream(filename));
+        GraphProcessor gp = new GraphProcessor();
+        gp.initialize(new FileInputStream(filename));
+        Point[] queries = randomPoints(base, points, 23);
+        List<Point> vertices = new ArrayList<>(base.myMap.keySet());
+        int k = Math.min(10, vertices.size());
+        int inRadius = Math.min(50, vertices.size());
+
+        long knnNanos = 0;
+        long radiusNanos = 0;
+        long found = 0;
+        for (Point p : queries) {
+            double[] dist = new double[vertices.size()];
+            for (int i = 0; i < dist.length; i++) {
+                dist[i] = p.distance(vertices.get(i));
+            }
+            Arrays.sort(dist);
+            double radius = dist[inRadius - 1];
+
+            long start = System.nanoTime();
+            List<Point> nearest = gp.nearestPoints(p, k);
+            knnNanos += System.nanoTime() - start;
+            start = System.nanoTime();
+            List<Point> within = gp.pointsWithin(p, radius);
+            radiusNanos += System.nanoTime() - start;
+            found += within.size();
+
+            checkSorted(p, nearest, Arrays.copyOf(dist, k));
+            int count = 0;
+            while (count < dist.length && dist[count] <= radius) {
+                count++;
+            }
+            checkSorted(p, within, Arrays.copyOf(dist, count));
+        }
+        System.out.printf("%d points on %s, all match the scan\n", points, filename);
+        System.out.printf("nearestPoints(p, %d) %8.2f us/query\n", k, knnNanos / 1e3 / points);
+        System.out.printf("pointsWithin(p, r)   %8.2f us/query, %.1f points each\n",
+                          radiusNanos / 1e3 / points, (double) found / points);
+    }
+
+    /**
+     * Times snapToEdge against a scan projecting onto every edge, then
+     * routes between pairs of snapped points and checks each against
+     * the four vertex routes between the ends of their edges.
+     */
+    public static void benchmarkSnap(String filename, int points) throws IOException {
+        Baseline base = new Baseline();
+        base.initialize(new FileInputStream(filename));
+        GraphProcessor gp = new GraphProcessor();
+        gp.initialize(new FileInputStream(filename));
+        Point[] queries = randomPoints(base, points, 29);
+        List<Point[]> edges = new ArrayList<>();
+        for (Map.Entry<Point, List<Point>> entry : base.myMap.entrySet()) {
+            for (Point other : entry.getValue()) {
+                if (entry.getKey().compareTo(other) < 0) {
+                    edges.add(new Point[] {entry.getKey(), other});
+                }
+            }
+        }
+
+        long scanNanos = 0;
+        long treeNanos = 0;
+        Point[] snapped = new Point[points];
+        Point[][] snappedEdge = new Point[points][];
+        for (int q = 0; q < points; q++) {
+            Point p = queries[q];
+            long start = System.nanoTime();
+            double best = Double.POSITIVE_INFINITY;
+            Point expected = null;
+            for (Point[] e : edges) {
+                Point onEdge = project(p, e[0], e[1]);
+                double d = p.distance(onEdge);
+                if (d < best) {
+                    best = d;
+                    expected = onEdge;
+                    snappedEdge[q] = e;
+                }
+            }
+            scanNanos += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            snapped[q] = gp.snapToEdge(p);
+            treeNanos += System.nanoTime() - start;
+            if (Math.abs(p.distance(snapped[q]) - best) > 1e-9 * Math.max(1, best)) {
+                throw new IllegalStateException(String.format(
+                    "%s snaps to %s, expected %s", p, snapped[q], expected));
+            }
+        }
+        System.out.printf("%d points on %s, all match the scan over %d edges\n",
+                          points, filename, edges.size());
+        System.out.printf("edge scan   %10.2f us/point\n", scanNanos / 1e3 / points);
+        System.out.printf("edge R-tree %10.2f us/point\n", treeNanos / 1e3 / points);
+
+        int routes = Math.min(100, points / 2);
+        int routed = 0;
+        long routeNanos = 0;
+        for (int i = 0; i + 1 < 2 * routes; i += 2) {
+            Point a = snapped[i];
+            Point b = snapped[i + 1];
+            List<Point> route;
+            long start = System.nanoTime();
+            try {
+                route = gp.route(a, b);
+            }
+            catch (IllegalArgumentException e) {
+                continue;
+            }
+            routeNanos += System.nanoTime() - start;
+            routed++;
+            double expected = Double.POSITIVE_INFINITY;
+            for (Point x : snappedEdge[i]) {
+                for (Point y : snappedEdge[i + 1]) {
+                    double d = a.distance(x) + b.distance(y);
+                    if (!x.equals(y)) {
+                        d += gp.routeDistance(gp.route(x, y, GraphProcessor.SearchMode.DIJKSTRA));
+                    }
+                    expected = Math.min(expected, d);
+                }
+            }
+            checkDistance(expected, gp.routeDistance(route), new Point[] {a, b});
+        }
+        System.out.printf("%d routes between snapped points, none longer than via edge ends\n", routed);
+        System.out.printf("mid-edge route %7.2f ms/route\n", routeNanos / 1e6 / Math.max(1, routed));
+    }
+
+    /**
+     * Resolves random points inside the continental US bounds of
+     * data/usa.vis one nearestPoint call at a time, then all at once
+     * with nearestPointBatch, and checks both agree.
+     */
+    public static void benchmarkBatch(String filename, int points) throws IOException {
+        GraphProcessor gp = new GraphProcessor();
+        gp.initialize(new FileInputStream(filename));
+        Scanner vis = new Scanner(new File("data/usa.vis"));
+        double minLon = vis.nextDouble();
+        double maxLon = vis.nextDouble();
+        double minLat = vis.nextDouble();
+        double maxLat = vis.nextDouble();
+        vis.close();
+        Random rand = new Random(31);
+        double[] lat = new double[points];
+        double[] lon = new double[points];
+        for (int i = 0; i < points; i++) {
+            lat[i] = minLat + (maxLat - minLat) * rand.nextDouble();
+            lon[i] = minLon + (maxLon - minLon) * rand.nextDouble();
+        }
+
+        Point[] expected = new Point[points];
+        long start = System.nanoTime();
+        for (int i = 0; i < points; i++) {
+            expected[i] = gp.nearestPoint(new Point(lat[i], lon[i]));
+        }
+        long oneNanos = System.nanoTime() - start;
+
+        Point[] actual = gp.nearestPointBatch(lat, lon); // warm up
+        start = System.nanoTime();
+        actual = gp.nearestPointBatch(lat, lon);
+        long batchNanos = System.nanoTime() - start;
+        for (int i = 0; i < points; i++) {
+            Point p = new Point(lat[i], lon[i]);
+            if (p.distance(actual[i]) != p.distance(expected[i])) {
+                throw new IllegalStateException(String.format(
+                    "batch nearest to %s is %s, expected %s", p, actual[i], expected[i]));
+            }
+        }
+        System.out.printf("%d points in the usa.vis bounds on %s, batch matches nearestPoint\n",
+                          points, filename);
+        System.out.printf("nearestPoint       %12.0f points/s\n", points / (oneNanos / 1e9));
+        System.out.printf("nearestPointBatch  %12.0f points/s on %d threads\n",
+                          points / (batchNanos / 1e9), ForkJoinPool.getCommonPoolParallelism());
+    }
+
+    // closest point to p on segment a-b, measured as EdgeTree does
+    private static Point project(Point p, Point a, Point b) {
+        double scale = Math.cos(Math.toRadians(p.getLat()));
+        double ax = (a.getLon() - p.getLon()) * scale;
+        double ay = a.getLat() - p.getLat();
+        double dx = (b.getLon() - a.getLon()) * scale;
+        double dy = b.getLat() - a.getLat();
+        double length = dx * dx + dy * dy;
+        double t = length > 0 ? Math.max(0, Math.min(1, -(ax * dx + ay * dy) / length)) : 0;
+        return new Point(a.getLat() + t * (b.getLat() - a.getLat()),
+                         a.getLon() + t * (b.getLon() - a.getLon()));
+    }
+
+    private static void checkSorted(Point p, List<Point> actual, double[] expected) {
+        if (actual.size() != expected.length) {
+            throw new IllegalStateException("found " + actual.size() + " near " + p
+                                            + ", expected " + expected.length);
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (p.distance(actual.get(i)) != expected[i]) {
+                throw new IllegalStateException("neighbor " + i + " of " + p + " is wrong");
+            }
+        }
+    }
+
+    // uniformly random points in the bounding box of the graph's vertices
+    static Point[] randomPoints(Baseline base, int count, long seed) {
+        double minLat = Double.POSITIVE_INFINITY, maxLat = Double.NEGATIVE_INFINITY;
+        double minLon = Double.POSITIVE_INFINITY, maxLon = Double.NEGATIVE_INFINITY;
+        for (Point p : base.myMap.keySet()) {
+            minLat = Math.min(minLat, p.getLat());
+            maxLat = Math.max(maxLat, p.getLat());
+            minLon = Math.min(minLon, p.getLon());
+            maxLon = Math.max(maxLon, p.getLon());
+        }
+        Random rand = new Random(seed);
+        Point[] points = new Point[count];
+        for (int i = 0; i < count; i++) {
+            points[i] = new Point(minLat + (maxLat - minLat) * rand.nextDouble(),
+                                  minLon + (maxLon - minLon) * rand.nextDouble());
+        }
+        return points;
+    }
+
+    // bytes allocated so far by the calling thread
+    static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory
+                .getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // random connected pairs of distinct vertices
+    static List<Point[]> randomPairs(Baseline base, int pairs, long seed) {
+        Random rand = new Random(seed);
+        List<Point> vertices = new ArrayList<>(base.myMap.keySet());
+        Collections.sort(vertices);
+        List<Point[]> queries = new ArrayList<>();
+        while (queries.size() < pairs) {
+            Point a = vertices.get(rand.nextInt(vertices.size()));
+            Point b = vertices.get(rand.nextInt(vertices.size()));
+            if (!a.equals(b) && base.connected(a, b)) {
+                queries.add(new Point[] {a, b});
+            }
+        }
+        return queries;
+    }
+
+    static void checkDistance(double expected, double actual, Point[] q) {
+        if (actual > expected * (1 + 1e-9)) {
+            throw new IllegalStateException(String.format(
+                "route %s to %s is %f, expected %f", q[0], q[1], actual, expected));
+        }
+    }
+
+    private static void report(String label, long nanos, long bytes) {
+        System.out.printf("%-22s %9.1f ms %8.1f MB/s\n", label, nanos / 1e6,
+                          bytes / 1e6 / (nanos / 1e9));
+    }
+
+    /**
+     * Writes a perturbed grid graph of about the given number of vertices
+     * spread over the continental US, with random edge labels like the
+     * ones in usa.graph. Some grid edges are dropped so that the graph
+     * has dead ends and a few disconnected pieces.
+     */
+    public static void writeSynthetic(String filename, int vertices, long seed) throws IOException {
+        Random rand = new Random(seed);
+        int cols = (int) Math.ceil(Math.sqrt(vertices * 2.0));
+        int rows = Math.max(1, (vertices + cols - 1) / cols);
+        int n = rows * cols;
+        double minLat = 25.0, maxLat = 49.0, minLon = -124.0, maxLon = -67.0;
+        StringBuilder edges = new StringBuilder();
+        int m = 0;
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                int v = r * cols + c;
+                if (c + 1 < cols && rand.nextInt(10) != 0) {
+                    edges.append(v).append(' ').append(v + 1).append(" I-").append(rand.nextInt(99)).append('\n');
+                    m++;
+                }
+                if (r + 1 < rows && rand.nextInt(10) != 0) {
+                    edges.append(v).append(' ').append(v + cols).append(" US").append(rand.nextInt(99)).append('\n');
+                    m++;
+                }
+            }
+        }
+        try (Writer out = new BufferedWriter(new FileWriter(filename), 1 << 16)) {
+            out.write(n + " " + m + "\n");
+            double latStep = (maxLat - minLat) / rows;
+            double lonStep = (maxLon - minLon) / cols;
+            for (int r = 0; r < rows; r++) {
+                for (int c = 0; c < cols; c++) {
+                    double lat = minLat + (r + 0.1 + 0.8 * rand.nextDouble()) * latStep;
+                    double lon = minLon + (c + 0.1 + 0.8 * rand.nextDouble()) * lonStep;
+                    out.write(String.format("V%d %.6f %.6f\n", r * cols + c, lat, lon));
+                }
+            }
+            out.write(edges.toString());
+        }
+        System.out.printf("wrote %s: %d vertices, %d edges\n", filename, n, m);
+    }
+
+    /**
+     * The original GraphProcessor implementation, kept as the reference
+     * point for timings and for checking results.
+     */
+    static class Baseline {
+        HashMap<Point, List<Point>> myMap = new HashMap<>();
+        Point[] myPoints;
+
+        public void initialize(FileInputStream file) throws IOException {
+            Scanner reader = new Scanner(file);
+            String[] nums = reader.nextLine().split(" ");
+            int numVertices = Integer.parseInt(nums[0]);
+            int numEdges = Integer.parseInt(nums[1]);
+            myPoints = new Point[numVertices];
+            for (int i = 0; i < numVertices; i++) {
+                String[] data = reader.nextLine().split(" ");
+                myPoints[i] = new Point(Double.parseDouble(data[1]), Double.parseDouble(data[2]));
+            }
+            for (int i = 0; i < numEdges; i++) {
+                String[] data = reader.nextLine().split(" ");
+                int start = Integer.parseInt(data[0]);
+                int end = Integer.parseInt(data[1]);
+                myMap.computeIfAbsent(myPoints[start], k -> new ArrayList<>()).add(myPoints[end]);
+                myMap.computeIfAbsent(myPoints[end], k -> new ArrayList<>()).add(myPoints[start]);
+            }
+            reader.close();
+        }
+
+        public Point nearestPoint(Point p) {
+            double min = Double.POSITIVE_INFINITY;
+            Point closestPoint = p;
+            for (Point each : myMap.keySet()) {
+                double d = p.distance(each);
+                if (d < min) {
+                    min = d;
+                    closestPoint = each;
+                }
+            }
+            return closestPoint;
+        }
+
+        public boolean connected(Point p1, Point p2) {
+            HashSet<Point> visited = new HashSet<>();
+            Stack<Point> toVisit = new Stack<>();
+            toVisit.push(p1);
+            visited.add(p1);
+            while (!toVisit.isEmpty()) {
+                Point current = toVisit.pop();
+                if (current.equals(p2)) {
+                    return true;
+                }
+                for (Point each : myMap.get(current)) {
+                    if (visited.add(each)) {
+                        toVisit.push(each);
+                    }
+                }
+            }
+            return false;
+        }
+
+        public List<Point> route(Point start, Point end) {
+            if (start.equals(end) || !connected(start, end)) {
+                throw new IllegalArgumentException("not possible");
+            }
+            Map<Point, Double> distanceMap = new HashMap<>();
+            Map<Point, Point> predMap = new HashMap<>();
+            predMap.put(start, null);
+            PriorityQueue<Point> pq = new PriorityQueue<>(
+                (p1, p2) -> Double.compare(distanceMap.get(p1), distanceMap.get(p2)));
+            pq.add(start);
+            distanceMap.put(start, 0.0);
+            while (pq.size() > 0) {
+                Point current = pq.remove();
+                if (current.equals(end)) {
+                    break;
+                }
+                for (Point p : myMap.get(current)) {
+                    double newDistance = distanceMap.get(current) + current.distance(p);
+                    if (!distanceMap.containsKey(p) || distanceMap.get(p) > newDistance) {
+                        distanceMap.put(p, newDistance);
+                        predMap.put(p, current);
+                        pq.add(p);
+                    }
+                }
+            }
+            List<Point> shortestPath = new ArrayList<>();
+            for (Point point = end; point != null; point = predMap.get(point)) {
+                shortestPath.add(point);
+            }
+            Collections.reverse(shortestPath);
+            return shortestPath;
+        }
+    }
+}
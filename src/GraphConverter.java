@@ -0,0 +1,27 @@
+import java.io.*;
+
+/**
+ * Converts a .graph text file into the binary snapshot format that
+ * GraphProcessor.initializeSnapshot opens, so that services can skip
+ * parsing at startup.
+ *
+ * Usage: java GraphConverter data/usa.graph data/usa.snapshot
+ */
+public class GraphConverter {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.out.println("usage: java GraphConverter input.graph output.snapshot");
+            return;
+        }
+        GraphProcessor gp = new GraphProcessor();
+        gp.initialize(new FileInputStream(args[0]));
+        gp.saveSnapshot(args[1]);
+
+        // reopen to make sure the snapshot is readable before reporting
+        GraphProcessor check = new GraphProcessor();
+        check.initializeSnapshot(new FileInputStream(args[1]));
+        System.out.printf("wrote %s (%.1f MB), reopens in %.1f ms\n", args[1],
+                          new File(args[1]).length() / 1e6, check.getLoadNanos() / 1e6);
+    }
+}
@@ -27,20 +27,59 @@ public class GraphDemo {
      * @throws IOException
      */
     public void readData(String filename) throws IOException{
-        Scanner s = new Scanner(new File(filename));
+        myMap.putAll(readCities(filename));
+    }
+
+    /**
+     * Reads a file formatted like "uscities.csv", one city,state,lat,lon
+     * per line, for use outside a GraphDemo
+     * @param filename is the name of a properly formatted file
+     * @return map from labels like "Durham NC" to their Points, in file order
+     * @throws IOException
+     */
+    public static Map<String, Point> readCities(String filename) throws IOException{
+        Map<String, Point> cities = new LinkedHashMap<>();
+        // UTF-8 whatever the platform default, since some names aren't ASCII
+        Scanner s = new Scanner(new File(filename), "UTF-8");
         while (s.hasNextLine()) {
-            String line = s.nextLine();
+            String line = s.nextLine().replace("\uFEFF", "");
             String[] data = line.split(",");
             String name = data[0] + " " + data[1];
-            myMap.put(name, new Point(Double.parseDouble(data[2]),Double.parseDouble(data[3])));
+            cities.put(name, new Point(Double.parseDouble(data[2]),Double.parseDouble(data[3])));
         }
+        s.close();
+        return cities;
     }
 
+    /**
+     * Routes through an intermediate city with one routeVia call, which
+     * snaps the cities and checks they connect once and searches both
+     * legs at the same time, then shows each leg and the whole route
+     * @param gp
+     * @param viz
+     */
     public void segmented(GraphProcessor gp, Visualize viz){
         String start = "Miami FL";
         String inter = "San Diego CA";
         String end = "Seattle WA";
-        // no code here
+        List<String> names = Arrays.asList(start, inter, end);
+        List<Point> stops = new ArrayList<>();
+        for (String name : names) {
+            if (! myMap.containsKey(name)){
+                System.out.printf("couldn't find %s in graph\n",name);
+                return;
+            }
+            stops.add(myMap.get(name));
+        }
+        GraphProcessor.MultiStopRoute trip = gp.routeVia(stops);
+        for (int k = 0; k < trip.getLegCount(); k++) {
+            System.out.printf("%s to %s: %2.3f\n",
+                              names.get(k),names.get(k+1),trip.getLegDistance(k));
+        }
+        List<Point> path = trip.getRoute().points();
+        System.out.printf("short path has %d points\n",path.size());
+        System.out.printf("short path is %2.3f in length\n",trip.getDistance());
+        viz.drawRoute(path);
     }
 
     /**
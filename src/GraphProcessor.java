@@ -1,6 +1,20 @@
 // import java.security.InvalidAlgorithmParameterException;
 import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
 
 
 /**
@@ -21,20 +35,62 @@ public class GraphProcessor {
      */
 
     // include instance variables here
-    private HashMap<Point, List<Point>> myMap;
+    private Graph myGraph;
     private int numVertices;
     private int numEdges;
-    //private HashMap<String, Point> myVertices; //name associated with vertices
-    private Point[] myPoints; //to preserve indices
     private Point destination;
+    private long myLoadBytes;
+    private long myLoadNanos;
+    private final WeightStorage myWeightStorage;
+    private SearchMode mySearchMode = SearchMode.DIJKSTRA;
+    private ContractionHierarchy myHierarchy;
+    private LandmarkTable myLandmarks;
+    private NearestIndex myNearestIndex = NearestIndex.KD_TREE;
+    private KdTree myTree;
+    private NearestScan myScan;
+    private NearestIndex myScanIndex; // the choice myScan was built for
+    private LazyEdgeTree myEdges;     // R-tree built on first use
+    private final ThreadLocal<Workspace> myWorkspaces = new ThreadLocal<>();
+    private FrozenGraph myFrozen;
+    private int myCacheRoutes;
+    private long myCacheBytes;
+    private RouteCache myCache;      // null when caching is off
+
+    private static final int SNAPSHOT_MAGIC = 0x52475048; // "RGPH"
+    private static final int SNAPSHOT_VERSION = 3;
+    private static final double EARTH_RADIUS = 3963.2; // as in Point
 
     public GraphProcessor(){
-        // TODO initialize instance variables
-        myMap = new HashMap<>();
+        this(WeightStorage.DOUBLE);
+    }
+
+    /**
+     * Creates an empty graph processor that keeps edge lengths as
+     * specified once a graph is loaded.
+     * @param storage how edge lengths are stored for routing
+     */
+    public GraphProcessor(WeightStorage storage){
         numVertices = 0;
         numEdges = 0;
-        //myVertices = new HashMap<>();
-        myPoints = new Point[1];
+        myGraph = Graph.EMPTY;
+        myTree = new KdTree(myGraph);
+        myEdges = new LazyEdgeTree(myGraph);
+        myWeightStorage = storage;
+        myFrozen = new FrozenGraph(this);
+    }
+
+    /**
+     * How edge lengths are kept for the routing loop. Lengths never
+     * change, so by default each one is computed once at load time
+     * and routing only adds numbers from an array.
+     */
+    public enum WeightStorage {
+        /** recompute each length with trigonometry when it is used */
+        COMPUTED,
+        /** one double per edge direction, exact Point.distance values */
+        DOUBLE,
+        /** one float per edge direction, half the memory of DOUBLE */
+        FLOAT
     }
 
     /**
@@ -46,73 +102,144 @@ public class GraphProcessor {
      */
 
     public void initialize(FileInputStream file) throws IOException {
-
-        
-        try{Scanner reader = new Scanner(file);
-        String lineOne = reader.nextLine();
-        String[] nums = lineOne.split(" ");
-        numVertices = Integer.parseInt(nums[0]);
-        numEdges = Integer.parseInt(nums[1]);
-        //myVertices = new HashMap<>();
-        myPoints = new Point[numVertices];
-        for(int i = 0; i < numVertices; i++)
-        {
-            String line = reader.nextLine();
-            String[] data = line.split(" ");
-            //String name = data[0];
-            double x = Double.parseDouble(data[1]);
-            double y = Double.parseDouble(data[2]);
-            Point me = new Point(x, y);
-            //myVertices.put(name, me);
-            myPoints[i] = me;
-        }
-        for(int i = 0; i < numEdges; i++)
-        {
-            String line = reader.nextLine();
-            String[] data = line.split(" ");
-            int start = Integer.parseInt(data[0]);
-            int end = Integer.parseInt(data[1]);
-            //String name = data[2];
-            if(myMap.keySet().contains(myPoints[start]))
-            {
-                List<Point> list = myMap.get(myPoints[start]);
-                list.add(myPoints[end]);
-                myMap.put(myPoints[start], list);
-            }
-            else
-            {
-                List<Point> list = new ArrayList<>();
-                list.add(myPoints[end]);
-                myMap.put(myPoints[start], list);
-            }
-
-            if(myMap.keySet().contains(myPoints[end]))
-            {
-                List<Point> list = myMap.get(myPoints[end]);
-                list.add(myPoints[start]);
-                myMap.put(myPoints[end], list);
-            }
-            else
-            {
-                List<Point> list = new ArrayList<>();
-                list.add(myPoints[start]);
-                myMap.put(myPoints[end], list);
-            }
-        }
-        reader.close();}
+        GraphData data;
+        try {
+            data = new GraphParser(file.getChannel()).parse();
+        }
         catch(Exception e)
         {
             throw new IOException("Could not read .graph file");
         }
+        data.buildAdjacency();
+        Graph graph = Graph.build(data);
+        load(graph.withWeights(myWeightStorage, graph.lengths()),
+             data.numEdges, data.bytes, data.nanos);
     }
 
     /**
-     * NOT USED IN FALL 2023, no need to implement
-     * @return list of all vertices in graph
+     * Creates and initializes a graph from a binary snapshot written
+     * by saveSnapshot. The file is memory-mapped and each array is
+     * copied out of the mapping in bulk, with no parsing; component
+     * labels are read rather than recomputed, and, as after initialize,
+     * the spatial indexes are built when first needed.
+     * @param file a FileInputStream of the snapshot file
+     * @throws IOException if the file is not a valid snapshot
+     */
+    public void initializeSnapshot(FileInputStream file) throws IOException {
+        long start = System.nanoTime();
+        Graph graph;
+        int edges;
+        long bytes;
+        try (SnapshotReader in = new SnapshotReader(file.getChannel(),
+                                                    SNAPSHOT_MAGIC, SNAPSHOT_VERSION)) {
+            int vertices = in.nextInt();
+            edges = in.nextInt();
+            int arcs = in.nextInt();
+            double[] lat = in.nextDoubles(vertices);
+            double[] lon = in.nextDoubles(vertices);
+            double[] lengths = null;
+            if (myWeightStorage == WeightStorage.COMPUTED) {
+                in.skip((long) arcs * Double.BYTES);
+            }
+            else {
+                lengths = in.nextDoubles(arcs);
+            }
+            int[] offsets = in.nextInts(vertices + 1);
+            int[] targets = in.nextInts(arcs);
+            if (offsets[0] != 0 || offsets[vertices] != arcs) {
+                throw new IOException("snapshot has bad adjacency offsets");
+            }
+            for (int v = 0; v < vertices; v++) {
+                if (offsets[v] > offsets[v + 1]) {
+                    throw new IOException("snapshot has bad adjacency offsets");
+                }
+            }
+            for (int t : targets) {
+                if (t < 0 || t >= vertices) {
+                    throw new IOException("snapshot has a bad edge target");
+                }
+            }
+            int[] component = in.nextInts(vertices);
+            for (int c : component) {
+                if (c < 0 || c >= vertices) {
+                    throw new IOException("snapshot has a bad component label");
+                }
+            }
+            graph = new Graph(lat, lon, offsets, targets, component).withWeights(myWeightStorage, lengths);
+            bytes = in.size();
+        }
+        load(graph, edges, bytes, System.nanoTime() - start);
+    }
+
+    /**
+     * Writes the graph as a binary snapshot that initializeSnapshot
+     * can reopen: vertex coordinates, adjacency with precomputed edge
+     * lengths, component labels, and a checksum of everything.
+     * @param filename name of the snapshot file to create
+     * @throws IOException if the file can't be written
+     */
+    public void saveSnapshot(String filename) throws IOException {
+        Graph g = myGraph;
+        double[] lengths = g.weights != null ? g.weights : g.lengths();
+        try (FileOutputStream out = new FileOutputStream(filename);
+             SnapshotWriter writer = new SnapshotWriter(out.getChannel(),
+                                                        SNAPSHOT_MAGIC, SNAPSHOT_VERSION)) {
+            writer.putInt(g.size);
+            writer.putInt(numEdges);
+            writer.putInt(g.targets.length);
+            writer.putDoubles(g.lat);
+            writer.putDoubles(g.lon);
+            writer.putDoubles(lengths);
+            writer.putInts(g.offsets);
+            writer.putInts(g.targets);
+            writer.putInts(g.component);
+        }
+    }
+
+    private void load(Graph graph, int edges, long bytes, long nanos) {
+        myGraph = graph;
+        myTree = null;
+        myScan = null;
+        if (myNearestIndex != NearestIndex.KD_TREE) {
+            buildNearestIndex();
+        }
+        myEdges = new LazyEdgeTree(graph);
+        myHierarchy = null;
+        myLandmarks = null;
+        numVertices = graph.size;
+        numEdges = edges;
+        myLoadBytes = bytes;
+        myLoadNanos = nanos;
+        myCache = myCacheRoutes > 0 ? new RouteCache(myCacheRoutes, myCacheBytes) : null;
+        myFrozen = new FrozenGraph(this);
+    }
+
+    /**
+     * @return number of bytes read by the most recent call to initialize
+     * or initializeSnapshot
+     */
+    public long getLoadBytes() {
+        return myLoadBytes;
+    }
+
+    /**
+     * @return time in nanoseconds spent parsing during the most recent
+     * call to initialize or initializeSnapshot
      */
+    public long getLoadNanos() {
+        return myLoadNanos;
+    }
 
+    /**
+     * @return list of all vertices in graph, sorted by latitude then
+     * longitude, which is also the order of the arrays from distancesFrom
+     */
     public List<Point> getVertices(){
-        return null;
+        List<Point> vertices = new ArrayList<>(myGraph.size);
+        for (int v = 0; v < myGraph.size; v++) {
+            vertices.add(myGraph.point(v));
+        }
+        return vertices;
     }
 
     /**
@@ -127,19 +254,229 @@ public class GraphProcessor {
      * Searches for the point in the graph that is closest in
      * straight-line distance to the parameter point p
      * @param p is a point, not necessarily in the graph
-     * @return The closest point in the graph to p
+     * @return The closest point in the graph to p, or p itself if a
+     * coordinate of p is NaN or infinite, whatever the nearest index
      */
     public Point nearestPoint(Point p) {
-        Double min = Double.POSITIVE_INFINITY;
-        Point closestPoint = p;
-        for (Point eachpoint : myMap.keySet()) {
-            Double newdistance = p.distance(eachpoint);
-            if (newdistance < min) {
-                min = newdistance;
-                closestPoint = eachpoint;
+        if (myNearestIndex == NearestIndex.KD_TREE) {
+            tree();
+        }
+        return myFrozen.nearestPoint(p);
+    }
+
+    /**
+     * How nearestPoint finds the closest vertex. KD_TREE, the default,
+     * searches a tree built the first time it is needed. SCAN checks every vertex,
+     * which needs no index build and is quick enough for small graphs
+     * like durham. VECTOR_SCAN is SCAN evaluated several vertices at a
+     * time with the jdk.incubator.vector API; it is the same as SCAN
+     * unless isVectorScanAvailable().
+     */
+    public enum NearestIndex {
+        KD_TREE,
+        SCAN,
+        VECTOR_SCAN
+    }
+
+    /**
+     * Sets how nearestPoint finds the closest vertex, building what the
+     * choice needs. Setting it before initialize avoids building the
+     * k-d tree at all. nearestPoints, pointsWithin and nearestPointBatch
+     * always use the k-d tree, building it when first needed.
+     * @param index how nearestPoint searches from now on
+     */
+    public void setNearestIndex(NearestIndex index) {
+        myNearestIndex = index;
+        buildNearestIndex();
+        myFrozen = new FrozenGraph(this);
+    }
+
+    /**
+     * @return how nearestPoint finds the closest vertex
+     */
+    public NearestIndex getNearestIndex() {
+        return myNearestIndex;
+    }
+
+    /**
+     * VectorNearestScan lives outside src since it needs
+     * --add-modules jdk.incubator.vector to compile and run; see that
+     * class for how.
+     * @return true if VECTOR_SCAN runs on Vector API lanes rather than
+     * falling back to the scalar scan
+     */
+    public static boolean isVectorScanAvailable() {
+        return NearestScan.vectorized(Graph.EMPTY) != null;
+    }
+
+    private void buildNearestIndex() {
+        if (myNearestIndex == NearestIndex.KD_TREE) {
+            tree();
+        }
+        else if (myScan == null || myScanIndex != myNearestIndex) {
+            NearestScan vector = null;
+            if (myNearestIndex == NearestIndex.VECTOR_SCAN) {
+                vector = NearestScan.vectorized(myGraph);
             }
+            myScan = vector != null ? vector : new NearestScan(myGraph);
+            myScanIndex = myNearestIndex;
+        }
+    }
+
+    private KdTree tree() {
+        if (myTree == null) {
+            myTree = new KdTree(myGraph);
+            myFrozen = new FrozenGraph(this);
+        }
+        return myTree;
+    }
+
+    /**
+     * Finds the k points in the graph closest to p in straight-line
+     * distance, such as candidates for snapping p to the graph.
+     * @param p is a point, not necessarily in the graph
+     * @param k how many points to return
+     * @return up to k points of the graph, closest first
+     */
+    public List<Point> nearestPoints(Point p, int k) {
+        tree();
+        return myFrozen.nearestPoints(p, k);
+    }
+
+    /**
+     * Finds every point in the graph within the given straight-line
+     * distance of p.
+     * @param p is a point, not necessarily in the graph
+     * @param miles the largest distance from p to include
+     * @return the points within miles of p, closest first
+     */
+    public List<Point> pointsWithin(Point p, double miles) {
+        tree();
+        return myFrozen.pointsWithin(p, miles);
+    }
+
+    /**
+     * Finds the closest graph point to each of many query points, such
+     * as a bulk geocoding file, using every core. Queries are sorted
+     * along a Z-order curve first so that neighboring queries search
+     * the same part of the k-d tree while it is still in cache.
+     * @param lat latitudes of the query points
+     * @param lon longitudes of the query points, as many as lat
+     * @return the closest graph point to (lat[i], lon[i]) at index i
+     */
+    public Point[] nearestPointBatch(double[] lat, double[] lon) {
+        tree();
+        return myFrozen.nearestPointBatch(lat, lon);
+    }
+
+    /**
+     * Same as nearestPointBatch(lat, lon) for a list of points.
+     * @param points query points, not necessarily in the graph
+     * @return the closest graph point to each query point, in order
+     */
+    public List<Point> nearestPointBatch(List<Point> points) {
+        double[] lat = new double[points.size()];
+        double[] lon = new double[points.size()];
+        for (int i = 0; i < lat.length; i++) {
+            lat[i] = points.get(i).getLat();
+            lon[i] = points.get(i).getLon();
         }
-        return closestPoint;
+        return Arrays.asList(nearestPointBatch(lat, lon));
+    }
+
+    /**
+     * Finds the road distance from every source to every target, such
+     * as a table between depots and customer cities. Each point is
+     * snapped to its nearest graph point once, then one search per
+     * source (or per target, if there are fewer) settles every target
+     * it can reach, and those searches run in parallel on every core.
+     * @param sources start points, not necessarily in the graph
+     * @param targets end points, not necessarily in the graph
+     * @return an array whose [i][j] entry is the length of the shortest
+     * route from the snapped sources.get(i) to the snapped targets.get(j),
+     * 0 if they snap to the same point and infinite if there is no route
+     */
+    public double[][] distanceMatrix(List<Point> sources, List<Point> targets) {
+        tree();
+        return myFrozen.distanceMatrix(sources, targets);
+    }
+
+    /**
+     * Finds every point of the graph within miles of source by road,
+     * and the shortest way to each. The search stops at the budget, so
+     * its cost depends on how much is in reach rather than on the size
+     * of source's component.
+     * @param source a point of the graph, e.g. from nearestPoint
+     * @param miles the distance budget
+     * @return the shortest path tree of the points in reach, in order of
+     * distance with source first
+     * @throws IllegalArgumentException if source is not in the graph
+     */
+    public ShortestPathTree shortestPathTree(Point source, double miles) throws IllegalArgumentException {
+        return myFrozen.shortestPathTree(source, miles);
+    }
+
+    /**
+     * Finds the area reachable from source within miles by road: the
+     * points of the graph in reach, as shortestPathTree finds them, and
+     * a polygon around them and the places on roads leaving them where
+     * the budget runs out.
+     * @param source a point of the graph, e.g. from nearestPoint
+     * @param miles the distance budget
+     * @return the isochrone of source for miles
+     * @throws IllegalArgumentException if source is not in the graph
+     */
+    public Isochrone isochrone(Point source, double miles) throws IllegalArgumentException {
+        return myFrozen.isochrone(source, miles);
+    }
+
+    /**
+     * Finds the road distance from source to every point of the graph
+     * with Dijkstra's algorithm on the calling thread.
+     * @param source a point of the graph
+     * @return distance to each point, in the order of getVertices,
+     * infinite for points not connected to source
+     * @throws IllegalArgumentException if source is not in the graph
+     */
+    public double[] distancesFrom(Point source) throws IllegalArgumentException {
+        return myFrozen.distancesFrom(source);
+    }
+
+    /**
+     * Same as distancesFrom(source), found by delta-stepping on every
+     * core: vertices are kept in buckets of distance width delta, and
+     * each bucket's edges are relaxed in parallel, so a whole bucket
+     * moves forward at once rather than one vertex at a time. Roads no
+     * longer than delta are relaxed repeatedly until the bucket settles;
+     * longer ones once after. A small delta does little wasted work but
+     * has little to do in parallel per step; a large one the reverse.
+     * A delta near a typical road length is a good start; only buckets
+     * holding vertices are kept, so even a tiny one costs time, not
+     * memory. The distances
+     * are exactly those of distancesFrom(source). Runs on the common
+     * ForkJoinPool, or on the pool of the task calling it.
+     * @param source a point of the graph
+     * @param delta bucket width in miles, greater than 0
+     * @return distance to each point, in the order of getVertices,
+     * infinite for points not connected to source
+     * @throws IllegalArgumentException if source is not in the graph
+     */
+    public double[] distancesFrom(Point source, double delta) throws IllegalArgumentException {
+        return myFrozen.distancesFrom(source, delta);
+    }
+
+    /**
+     * Projects p onto the closest road segment, which may land between
+     * two points of the graph. The result can be passed to route as a
+     * start or end, so a trip begins where p actually meets the road
+     * rather than at the nearest intersection.
+     * @param p is a point, not necessarily in the graph
+     * @return the closest point to p on an edge of the graph, or p if
+     * the graph has no edges
+     * @throws IllegalArgumentException if p's coordinates aren't finite
+     */
+    public Point snapToEdge(Point p) throws IllegalArgumentException {
+        return myFrozen.snapToEdge(p);
     }
 
 
@@ -153,17 +490,15 @@ public class GraphProcessor {
      * @return The distance to get from start to end
      */
     public double routeDistance(List<Point> route) {
-        double d = 0.0;
-        // TODO implement routeDistance
-        int len = route.size();
-        for(int i = 0; i < len - 1; i++)
-        {
-            Point start = route.get(i);
-            Point end = route.get(i + 1);
-            double dis = start.distance(end);
-            d += dis;
-        }
-        return d;
+        return myFrozen.routeDistance(route);
+    }
+
+    /**
+     * @param route a route from routeResult
+     * @return the total distance along route, which it already holds
+     */
+    public double routeDistance(RouteResult route) {
+        return route.getDistance();
     }
     
 
@@ -176,29 +511,34 @@ public class GraphProcessor {
      * @return true if and onlyu if p2 is reachable from p1 (and vice versa)
      */
     public boolean connected(Point p1, Point p2) {
-        HashSet<Point> visited = new HashSet<>();
-        Stack<Point> toVisit = new Stack<>();
-        toVisit.push(p1);
-        visited.add(p1);
-        while(!toVisit.isEmpty()){
-            Point current = toVisit.pop();
-            if(current.equals(p2))
-            {
-                return true;
-            }
-            List<Point> neighbors = myMap.get(current);//get neighbors
-            for(Point each : neighbors){//for each neighbor 
-                if(!visited.contains(each)) // if it hasn't been visited
-                {
-                    toVisit.push(each); 
-                    visited.add(each);
-                }
-                if(visited.contains(p2)){
-                    return true;
-                }
-            }
-        }
-        return false;
+        return myFrozen.connected(p1, p2);
+    }
+
+    /**
+     * Finds which connected component of the graph a point is in.
+     * Components are numbered from 0 when the graph is loaded, and two
+     * points are connected exactly when they have the same number.
+     * @param p a point
+     * @return the component of p, or -1 if p is not in the graph
+     */
+    public int getComponent(Point p) {
+        return myFrozen.getComponent(p);
+    }
+
+    /**
+     * @return number of connected components in the graph, counting
+     * each vertex without edges as its own component
+     */
+    public int getComponentCount() {
+        return myGraph.componentSizes.length;
+    }
+
+    /**
+     * @param component a component number from getComponent
+     * @return number of vertices in that component
+     */
+    public int getComponentSize(int component) {
+        return myGraph.componentSizes[component];
     }
 
     /**
@@ -206,7 +546,8 @@ public class GraphProcessor {
      * and terminates at end, including start and end as the first and last
      * points in the returned list. If there is no such route, either because
      * start is not connected to end or because start equals end, throws an
-     * exception.
+     * exception. start and end may also lie part way along an edge, as
+     * returned by snapToEdge; such routes are always found by Dijkstra.
      * @param start Beginning point.
      * @param end Destination point.
      * @return The shortest path [start, ..., end].
@@ -214,55 +555,4159 @@ public class GraphProcessor {
      * either because start is not connected to end or because start equals end.
      */
     public List<Point> route(Point start, Point end) throws IllegalArgumentException {
-        if (start.equals(end) || !connected(start, end)) {
-            throw new IllegalArgumentException("not possible");
-        }
-        Map<Point, Double> distanceMap = new HashMap<>();
-        Map<Point,Point> predMap = new HashMap<>();
-        predMap.put (start, null);
-        Comparator<Point> comp = new Comparator<Point>() {
-            @Override
-            public int compare(Point p1, Point p2) {
-                return Double.compare(distanceMap.get(p1), distanceMap.get(p2));
+        return myFrozen.route(start, end, mySearchMode);
+    }
+
+    /**
+     * Same as route(start, end), searching with the given mode rather
+     * than this GraphProcessor's default.
+     * @param start Beginning point.
+     * @param end Destination point.
+     * @param mode how to search for the route
+     * @return The shortest path [start, ..., end].
+     * @throws IllegalArgumentException if there is no such route,
+     * either because start is not connected to end or because start equals end.
+     */
+    public List<Point> route(Point start, Point end, SearchMode mode) throws IllegalArgumentException {
+        return myFrozen.route(start, end, mode);
+    }
+
+    /**
+     * Same as route(start, end), returning the route as vertex ids and
+     * its total distance rather than a list of points, for callers that
+     * only need the distance or want to walk the coordinates. route
+     * returns this result's points() view.
+     * @param start Beginning point.
+     * @param end Destination point.
+     * @return The shortest route from start to end.
+     * @throws IllegalArgumentException if there is no such route,
+     * either because start is not connected to end or because start equals end.
+     */
+    public RouteResult routeResult(Point start, Point end) throws IllegalArgumentException {
+        return myFrozen.routeResult(start, end, mySearchMode);
+    }
+
+    /**
+     * Same as routeResult(start, end), searching with the given mode.
+     * @param start Beginning point.
+     * @param end Destination point.
+     * @param mode how to search for the route
+     * @return The shortest route from start to end.
+     * @throws IllegalArgumentException if there is no such route,
+     * either because start is not connected to end or because start equals end.
+     */
+    public RouteResult routeResult(Point start, Point end, SearchMode mode) throws IllegalArgumentException {
+        return myFrozen.routeResult(start, end, mode);
+    }
+
+    /**
+     * Finds one route that visits stops in order, such as a delivery
+     * run. Every stop is snapped to its nearest graph point at once,
+     * reachability is checked once for all of them, and the legs between
+     * consecutive stops are searched in parallel, then joined. A stop
+     * that snaps to the same point as the one before adds an empty leg.
+     * @param stops two or more points, not necessarily in the graph
+     * @return the joined route with each leg's distance
+     * @throws IllegalArgumentException if there are fewer than two stops
+     * or some stop can't be reached from the first
+     */
+    public MultiStopRoute routeVia(List<Point> stops) throws IllegalArgumentException {
+        tree();
+        return myFrozen.routeVia(stops, mySearchMode);
+    }
+
+    /**
+     * Search strategies for route. All return shortest paths;
+     * ASTAR orders the queue by distance so far plus the straight-line
+     * distance left to the destination, which never exceeds the road
+     * distance left, so far fewer vertices are settled on long routes.
+     * BIDIRECTIONAL grows one Dijkstra search from each end until they
+     * meet, covering about half the area of one search.
+     * CONTRACTION_HIERARCHY searches upward in a precomputed hierarchy
+     * and needs prepareContractionHierarchy to have been called.
+     * LANDMARKS is A* with lower bounds from road distances to a few
+     * landmark vertices and needs prepareLandmarks to have been called.
+     */
+    public enum SearchMode {
+        DIJKSTRA,
+        ASTAR,
+        BIDIRECTIONAL,
+        CONTRACTION_HIERARCHY,
+        LANDMARKS
+    }
+
+    /**
+     * Sets the search used by route(start, end), DIJKSTRA unless set.
+     * @param mode how route searches from now on
+     */
+    public void setSearchMode(SearchMode mode) {
+        mySearchMode = mode;
+        myFrozen = new FrozenGraph(this);
+    }
+
+    /**
+     * @return the search used by route(start, end)
+     */
+    public SearchMode getSearchMode() {
+        return mySearchMode;
+    }
+
+    /**
+     * Builds the contraction hierarchy used by
+     * SearchMode.CONTRACTION_HIERARCHY for the current graph.
+     */
+    public void prepareContractionHierarchy() {
+        myHierarchy = ContractionHierarchy.build(myGraph);
+        myFrozen = new FrozenGraph(this);
+    }
+
+    /**
+     * Loads the contraction hierarchy for the current graph from
+     * filename, or builds it and writes it there if the file is
+     * missing or was built for a different graph, so that the
+     * preprocessing runs once per graph file.
+     * @param filename where the hierarchy is kept
+     * @throws IOException if a new hierarchy can't be written
+     */
+    public void prepareContractionHierarchy(String filename) throws IOException {
+        if (new File(filename).exists()) {
+            try (FileInputStream in = new FileInputStream(filename)) {
+                myHierarchy = ContractionHierarchy.load(in.getChannel(), myGraph);
+                myFrozen = new FrozenGraph(this);
+                return;
             }
-        };
-        PriorityQueue<Point> pq = new PriorityQueue<Point>(comp);//
-        Point current = start;//start at the start
-        pq.add(current);//add the start to the priority queue
-        distanceMap.put(current, 0.0);//put the start in the distance map
+            catch (IOException e) {
+                // stale or damaged, rebuild below
+            }
+        }
+        prepareContractionHierarchy();
+        myHierarchy.save(filename);
+    }
+
+    /**
+     * Chooses count landmarks with the given strategy and stores the
+     * road distance from each to every vertex, count * |V| floats in
+     * all, for SearchMode.LANDMARKS. More landmarks give tighter bounds
+     * and faster queries at the cost of memory.
+     * @param count number of landmarks
+     * @param strategy how landmarks are placed
+     */
+    public void prepareLandmarks(int count, LandmarkStrategy strategy) {
+        myLandmarks = LandmarkTable.build(myGraph, count, strategy);
+        myFrozen = new FrozenGraph(this);
+    }
 
-        while (pq.size() > 0){
-            current = pq.remove();//get the next point to visit
-            if (current.equals(end)){
-                break;//if the current point is the end
+    /**
+     * Loads landmark tables for the current graph from filename, or
+     * builds them as prepareLandmarks(count, strategy) does and writes
+     * them there if the file is missing, was built for a different
+     * graph, or has a different count or strategy.
+     * @param count number of landmarks
+     * @param strategy how landmarks are placed
+     * @param filename where the tables are kept, e.g. next to the graph
+     * @throws IOException if new tables can't be written
+     */
+    public void prepareLandmarks(int count, LandmarkStrategy strategy, String filename)
+        throws IOException {
+        if (new File(filename).exists()) {
+            try (FileInputStream in = new FileInputStream(filename)) {
+                LandmarkTable table = LandmarkTable.load(in.getChannel(), myGraph);
+                if (table.count == count && table.strategy == strategy) {
+                    myLandmarks = table;
+                    myFrozen = new FrozenGraph(this);
+                    return;
+                }
+            }
+            catch (IOException e) {
+                // stale or damaged, rebuild below
             }
-            for(Point p: myMap.get(current)){//for each neighbor of the current point
-                double weight = current.distance(p);//get the weight of the edge
-                double newDistance = distanceMap.get(current) + weight;//get the distance from the start to the neighbor
-                if(!distanceMap.containsKey(p) || distanceMap.get(p) > newDistance){//if the new distance is less than the current distance
-                    distanceMap.put(p, newDistance);//update the distance map
-                    predMap.put(p, current);//update the recon path
-                    pq.add(p);//add the neighbor to the priority queue
+        }
+        prepareLandmarks(count, strategy);
+        myLandmarks.save(filename);
+    }
+
+    /**
+     * Ways to place landmarks. FARTHEST repeatedly takes the vertex
+     * farthest by road from the landmarks chosen so far. AVOID grows a
+     * shortest path tree from a random vertex and places the next
+     * landmark at the leaf of the subtree whose paths the current
+     * landmarks bound worst.
+     */
+    public enum LandmarkStrategy {
+        FARTHEST,
+        AVOID
+    }
+
+    /**
+     * Fills dist with shortest distances from source to every vertex,
+     * infinite where unreachable, and pred with the predecessor of each
+     * vertex on its shortest path, -1 for source and unreachable ones.
+     */
+    static void shortestPaths(Graph g, int source, double[] dist, int[] pred) {
+        Arrays.fill(dist, Double.POSITIVE_INFINITY);
+        Arrays.fill(pred, -1);
+        IndexedMinHeap pq = new IndexedMinHeap(g.size);
+        dist[source] = 0.0;
+        pq.push(source, 0.0);
+        while (!pq.isEmpty()) {
+            int current = pq.pop();
+            for (int e = g.offsets[current]; e < g.offsets[current + 1]; e++) {
+                int next = g.targets[e];
+                double newDistance = dist[current] + g.weight(current, e);
+                if (newDistance < dist[next]) {
+                    dist[next] = newDistance;
+                    pred[next] = current;
+                    pq.push(next, newDistance);
                 }
             }
-            
         }
-        List<Point> shortestPath = new ArrayList<>();
-        Point point = end;//start at the end
-        while (point != null) {
-            shortestPath.add(0, point);
-            point = predMap.get(point);
+    }
+
+    /**
+     * Caches routes between graph points, so a pair asked for again, in
+     * either direction, is answered without searching. The cache keeps
+     * the most recently used routes, up to maxRoutes of them and about
+     * maxBytes in all, and is shared by all threads and frozen views of
+     * the current graph. A cached route may come from any search mode.
+     * Loading a graph or calling this again starts an empty cache.
+     * Caching is off until this is called.
+     * @param maxRoutes most routes to keep, 0 to turn caching off
+     * @param maxBytes most memory the cached routes may take
+     */
+    public void setRouteCache(int maxRoutes, long maxBytes) {
+        myCacheRoutes = maxBytes > 0 ? maxRoutes : 0;
+        myCacheBytes = maxBytes;
+        myCache = myCacheRoutes > 0 ? new RouteCache(myCacheRoutes, myCacheBytes) : null;
+        myFrozen = new FrozenGraph(this);
+    }
+
+    /**
+     * @return number of routes answered from the cache since it was
+     * started
+     */
+    public long getRouteCacheHits() {
+        return myCache == null ? 0 : myCache.hits();
+    }
+
+    /**
+     * @return number of routes looked for in the cache and not found
+     * since it was started
+     */
+    public long getRouteCacheMisses() {
+        return myCache == null ? 0 : myCache.misses();
+    }
+
+    /**
+     * @return number of routes in the cache
+     */
+    public int getRouteCacheSize() {
+        return myCache == null ? 0 : myCache.size();
+    }
+
+    /**
+     * Returns an immutable view of the graph loaded now and everything
+     * prepared for it, whose queries can be shared by any number of
+     * threads; see FrozenGraph. Builds the k-d tree first if
+     * setNearestIndex skipped it.
+     * @return the frozen graph
+     */
+    public FrozenGraph freeze() {
+        tree();
+        return myFrozen;
+    }
+
+    /**
+     * @return number of vertices settled by the most recent call to
+     * route from the calling thread
+     */
+    public int getSettledCount() {
+        Workspace workspace = myWorkspaces.get();
+        return workspace == null ? 0 : workspace.settled;
+    }
+
+    /**
+     * @return number of edges relaxed by the most recent call to
+     * route from the calling thread
+     */
+    public int getRelaxedCount() {
+        Workspace workspace = myWorkspaces.get();
+        return workspace == null ? 0 : workspace.relaxed;
+    }
+
+    /**
+     * An immutable view of a loaded graph and everything prepared for
+     * it, from freeze(). Nothing it refers to is written after it is
+     * made, and each thread searches with arrays of its own, so every
+     * query may be called from any number of threads at once. It keeps
+     * answering for the graph it was made from after the GraphProcessor
+     * loads another one or prepares more. GraphProcessor answers its
+     * own queries through the latest one of these.
+     */
+    public static final class FrozenGraph {
+        private final Graph myGraph;
+        private final NearestIndex myNearestIndex;
+        private final KdTree myTree;       // null until a GraphProcessor needs one
+        private final NearestScan myScan;
+        private final LazyEdgeTree myEdges;
+        private final ContractionHierarchy myHierarchy;
+        private final LandmarkTable myLandmarks;
+        private final SearchMode mySearchMode;
+        private final RouteCache myCache;
+        private final ThreadLocal<Workspace> myWorkspaces;
+
+        private FrozenGraph(GraphProcessor gp) {
+            myGraph = gp.myGraph;
+            myNearestIndex = gp.myNearestIndex;
+            myTree = gp.myTree;
+            myScan = gp.myScan;
+            myEdges = gp.myEdges;
+            myHierarchy = gp.myHierarchy;
+            myLandmarks = gp.myLandmarks;
+            mySearchMode = gp.mySearchMode;
+            myCache = gp.myCache;
+            myWorkspaces = gp.myWorkspaces;
+        }
+
+        /**
+         * Same as GraphProcessor.nearestPoint.
+         */
+        public Point nearestPoint(Point p) {
+            if (!isFinite(p)) {
+                return p;
+            }
+            int closest = myNearestIndex == NearestIndex.KD_TREE
+                        ? myTree.nearest(p.getLat(), p.getLon())
+                        : myScan.nearest(p.getLat(), p.getLon());
+            return closest < 0 ? p : myGraph.point(closest);
+        }
+
+        /**
+         * Same as GraphProcessor.nearestPoints.
+         */
+        public List<Point> nearestPoints(Point p, int k) {
+            Neighbors found = new Neighbors();
+            myTree.search(p.getLat(), p.getLon(), k, Double.POSITIVE_INFINITY, found);
+            return found.points(myGraph);
         }
 
-        return shortestPath;
+        /**
+         * Same as GraphProcessor.pointsWithin.
+         */
+        public List<Point> pointsWithin(Point p, double miles) {
+            Neighbors found = new Neighbors();
+            myTree.search(p.getLat(), p.getLon(), Integer.MAX_VALUE, miles, found);
+            return found.points(myGraph);
+        }
+
+        /**
+         * Same as GraphProcessor.nearestPointBatch.
+         */
+        public Point[] nearestPointBatch(double[] lat, double[] lon) {
+            if (lat.length != lon.length) {
+                throw new IllegalArgumentException("need as many longitudes as latitudes");
+            }
+            Point[] result = new Point[lat.length];
+            NearestBatch batch = new NearestBatch(myGraph, myTree, lat, lon, spatialOrder(lat, lon),
+                                                  new int[lat.length], result, 0, lat.length);
+            ForkJoinPool.commonPool().invoke(batch);
+            return result;
         }
-    public static void main(String[] args) throws FileNotFoundException, IOException {
-        String name = "data/usa.graph";
-        GraphProcessor gp = new GraphProcessor();
-        gp.initialize(new FileInputStream(name));
-        System.out.println("running GraphProcessor");
-    }
 
+        /**
+         * Same as GraphProcessor.distanceMatrix.
+         */
+        public double[][] distanceMatrix(List<Point> sources, List<Point> targets) {
+            if (sources.size() > targets.size()) {
+                // the graph is undirected, so search from the smaller side
+                double[][] flipped = distanceMatrix(targets, sources);
+                double[][] matrix = new double[sources.size()][targets.size()];
+                for (int i = 0; i < flipped.length; i++) {
+                    for (int j = 0; j < flipped[i].length; j++) {
+                        matrix[j][i] = flipped[i][j];
+                    }
+                }
+                return matrix;
+            }
+            int[] rows = snapIds(sources);
+            int[] columns = snapIds(targets);
+            int[] distinct = Arrays.stream(columns).filter(v -> v >= 0).sorted().distinct().toArray();
+            double[][] matrix = new double[rows.length][columns.length];
+            ForkJoinPool.commonPool().invoke(new MatrixRows(this, rows, columns, distinct, matrix, 0, rows.length));
+            return matrix;
+        }
 
-    
+        /**
+         * Same as GraphProcessor.shortestPathTree.
+         */
+        public ShortestPathTree shortestPathTree(Point source, double miles) throws IllegalArgumentException {
+            Graph g = myGraph;
+            int root = g.find(source);
+            if (root < 0) {
+                throw new IllegalArgumentException("not in graph");
+            }
+            Workspace workspace = workspace(g);
+            SearchSpace space = workspace.forward();
+            IndexedMinHeap pq = space.heap;
+            int[] slots = workspace.slots();
+            IntList reached = workspace.path;
+            reached.clear();
+            space.set(root, 0.0, -1);
+            pq.push(root, 0.0);
+            while (!pq.isEmpty()) {
+                int current = pq.pop();
+                slots[current] = reached.size();
+                reached.add(current);
+                for (int e = g.offsets[current]; e < g.offsets[current + 1]; e++) {
+                    int next = g.targets[e];
+                    double newDistance = space.dist[current] + g.weight(current, e);
+                    // nothing past the budget is queued, so the search ends there
+                    if (newDistance <= miles && newDistance < space.dist(next)) {
+                        space.set(next, newDistance, current);
+                        pq.push(next, newDistance);
+                    }
+                }
+            }
+            int[] vertices = reached.toArray();
+            int[] parents = new int[vertices.length];
+            float[] dist = new float[vertices.length];
+            for (int k = 0; k < vertices.length; k++) {
+                int before = space.pred[vertices[k]];
+                parents[k] = before < 0 ? -1 : slots[before];
+                dist[k] = (float) space.dist[vertices[k]];
+            }
+            return new ShortestPathTree(g, vertices, parents, dist, miles);
+        }
+
+        /**
+         * Same as GraphProcessor.isochrone.
+         */
+        public Isochrone isochrone(Point source, double miles) throws IllegalArgumentException {
+            return new Isochrone(shortestPathTree(source, miles));
+        }
+
+        /**
+         * Same as GraphProcessor.distancesFrom(source).
+         */
+        public double[] distancesFrom(Point source) throws IllegalArgumentException {
+            int root = myGraph.find(source);
+            if (root < 0) {
+                throw new IllegalArgumentException("not in graph");
+            }
+            double[] dist = new double[myGraph.size];
+            shortestPaths(myGraph, root, dist, new int[myGraph.size]);
+            return dist;
+        }
+
+        /**
+         * Same as GraphProcessor.distancesFrom(source, delta).
+         */
+        public double[] distancesFrom(Point source, double delta) throws IllegalArgumentException {
+            if (!(delta > 0)) {
+                throw new IllegalArgumentException("delta must be positive");
+            }
+            int root = myGraph.find(source);
+            if (root < 0) {
+                throw new IllegalArgumentException("not in graph");
+            }
+            return new DeltaStepping(myGraph, delta).run(root);
+        }
+
+        /**
+         * @return the id of the graph point nearest each point, -1 for
+         * none when the graph is empty
+         */
+        private int[] snapIds(List<Point> points) {
+            double[] lat = new double[points.size()];
+            double[] lon = new double[points.size()];
+            for (int i = 0; i < lat.length; i++) {
+                lat[i] = points.get(i).getLat();
+                lon[i] = points.get(i).getLon();
+            }
+            int[] ids = new int[lat.length];
+            ForkJoinPool.commonPool().invoke(new NearestBatch(myGraph, myTree, lat, lon, spatialOrder(lat, lon),
+                                                              ids, null, 0, lat.length));
+            return ids;
+        }
+
+        /**
+         * Dijkstra from source until every vertex of distinct, the sorted
+         * target vertices, in its component is settled, then fills row
+         * with the distance to each column's vertex.
+         */
+        private void oneToMany(int source, int[] columns, int[] distinct, double[] row) {
+            Graph g = myGraph;
+            if (source < 0) {
+                Arrays.fill(row, Double.POSITIVE_INFINITY);
+                return;
+            }
+            Workspace workspace = workspace(g);
+            SearchSpace space = workspace.forward();
+            IndexedMinHeap pq = space.heap;
+            int left = 0;
+            for (int v : distinct) {
+                if (g.component[v] == g.component[source]) {
+                    left++;
+                }
+            }
+            space.set(source, 0.0, -1);
+            pq.push(source, 0.0);
+            while (left > 0 && !pq.isEmpty()) {
+                int current = pq.pop();
+                if (Arrays.binarySearch(distinct, current) >= 0) {
+                    left--;
+                }
+                for (int e = g.offsets[current]; e < g.offsets[current + 1]; e++) {
+                    int next = g.targets[e];
+                    double newDistance = space.dist[current] + g.weight(current, e);
+                    if (newDistance < space.dist(next)) {
+                        space.set(next, newDistance, current);
+                        pq.push(next, newDistance);
+                    }
+                }
+            }
+            for (int j = 0; j < columns.length; j++) {
+                row[j] = columns[j] < 0 ? Double.POSITIVE_INFINITY : space.dist(columns[j]);
+            }
+        }
+
+        /**
+         * Same as GraphProcessor.snapToEdge.
+         */
+        public Point snapToEdge(Point p) throws IllegalArgumentException {
+            if (!isFinite(p)) {
+                throw new IllegalArgumentException("not a finite point");
+            }
+            EdgeSnap snap = myEdges.get().nearest(p.getLat(), p.getLon());
+            return snap == null ? p : new Point(snap.lat, snap.lon);
+        }
+
+        /**
+         * Same as GraphProcessor.routeDistance.
+         */
+        public double routeDistance(List<Point> route) {
+            if (route instanceof RouteResult.PointView) {
+                return ((RouteResult.PointView) route).result().getDistance();
+            }
+            double d = 0.0;
+            for (int i = 0; i < route.size() - 1; i++) {
+                d += route.get(i).distance(route.get(i + 1));
+            }
+            return d;
+        }
+
+        /**
+         * Same as GraphProcessor.connected.
+         */
+        public boolean connected(Point p1, Point p2) {
+            int source = myGraph.find(p1);
+            int target = myGraph.find(p2);
+            if (source < 0 || target < 0) {
+                return false;
+            }
+            return myGraph.component[source] == myGraph.component[target];
+        }
+
+        /**
+         * Same as GraphProcessor.getComponent.
+         */
+        public int getComponent(Point p) {
+            int v = myGraph.find(p);
+            return v < 0 ? -1 : myGraph.component[v];
+        }
+
+        /**
+         * Same as GraphProcessor.route, searching with the mode that was
+         * set when this was made.
+         */
+        public List<Point> route(Point start, Point end) throws IllegalArgumentException {
+            return routeResult(start, end, mySearchMode).points();
+        }
+
+        /**
+         * Same as GraphProcessor.route(start, end, mode).
+         */
+        public List<Point> route(Point start, Point end, SearchMode mode) throws IllegalArgumentException {
+            return routeResult(start, end, mode).points();
+        }
+
+        /**
+         * Same as GraphProcessor.routeResult, searching with the mode
+         * that was set when this was made.
+         */
+        public RouteResult routeResult(Point start, Point end) throws IllegalArgumentException {
+            return routeResult(start, end, mySearchMode);
+        }
+
+        /**
+         * Same as GraphProcessor.routeResult(start, end, mode).
+         */
+        public RouteResult routeResult(Point start, Point end, SearchMode mode) throws IllegalArgumentException {
+            if (start.equals(end)) {
+                throw new IllegalArgumentException("not possible");
+            }
+            Graph g = myGraph;
+            int source = g.find(start);
+            int target = g.find(end);
+            if (source < 0 || target < 0) {
+                return edgeRoute(g, start, source, end, target);
+            }
+            if (g.component[source] != g.component[target]) {
+                throw new IllegalArgumentException("not possible");
+            }
+            RouteCache cache = myCache;
+            if (cache != null) {
+                int[] cached = cache.get(source, target);
+                if (cached != null) {
+                    return new RouteResult(g, cached, source > target, null, null);
+                }
+            }
+            int[] ids = routeIds(g, source, target, mode);
+            if (cache != null) {
+                cache.put(source, target, ids);
+            }
+            return new RouteResult(g, ids, false, null, null);
+        }
+
+        /**
+         * Same as GraphProcessor.routeVia, searching with the given mode.
+         */
+        public MultiStopRoute routeVia(List<Point> stops, SearchMode mode) throws IllegalArgumentException {
+            if (stops.size() < 2) {
+                throw new IllegalArgumentException("need at least two stops");
+            }
+            Graph g = myGraph;
+            int[] ids = snapIds(stops);
+            for (int v : ids) {
+                if (v < 0 || g.component[v] != g.component[ids[0]]) {
+                    throw new IllegalArgumentException("not possible");
+                }
+            }
+            int[][] legs = new int[ids.length - 1][];
+            ForkJoinPool.commonPool().invoke(new Legs(this, ids, mode, legs, 0, legs.length));
+            return new MultiStopRoute(g, ids, legs);
+        }
+
+        /**
+         * @return vertex ids of a shortest path from source to target,
+         * just source if they are the same, from the cache if it has one
+         */
+        private int[] leg(int source, int target, SearchMode mode) {
+            if (source == target) {
+                return new int[] {source};
+            }
+            RouteCache cache = myCache;
+            if (cache != null) {
+                int[] cached = cache.get(source, target);
+                if (cached != null) {
+                    if (source > target) {
+                        cached = cached.clone();
+                        for (int i = 0, j = cached.length - 1; i < j; i++, j--) {
+                            int swap = cached[i];
+                            cached[i] = cached[j];
+                            cached[j] = swap;
+                        }
+                    }
+                    return cached;
+                }
+            }
+            int[] ids = routeIds(myGraph, source, target, mode);
+            if (cache != null) {
+                cache.put(source, target, ids);
+            }
+            return ids;
+        }
+
+        /**
+         * @return vertex ids of a shortest path from source to target,
+         * which are distinct and connected
+         */
+        private int[] routeIds(Graph g, int source, int target, SearchMode mode) {
+            if (mode == SearchMode.BIDIRECTIONAL) {
+                return bidirectionalSearch(g, source, target);
+            }
+            if (mode == SearchMode.CONTRACTION_HIERARCHY) {
+                if (myHierarchy == null) {
+                    throw new IllegalStateException("call prepareContractionHierarchy first");
+                }
+                return hierarchySearch(g, myHierarchy, source, target);
+            }
+            if (mode == SearchMode.LANDMARKS && myLandmarks == null) {
+                throw new IllegalStateException("call prepareLandmarks first");
+            }
+            return search(g, source, target, mode);
+        }
+
+        /**
+         * Dijkstra, or A* for ASTAR and LANDMARKS, whose lower bounds on
+         * the distance left are added to queue keys. A vertex whose
+         * distance improves after it was settled is queued again, so a
+         * slightly loose bound costs time but not correctness.
+         */
+        private int[] search(Graph g, int source, int target, SearchMode mode) {
+            LandmarkTable landmarks = mode == SearchMode.LANDMARKS ? myLandmarks : null;
+            boolean goalDirected = mode == SearchMode.ASTAR;
+            Workspace workspace = workspace(g);
+            SearchSpace space = workspace.forward();
+            IndexedMinHeap pq = space.heap;
+            double targetLat = g.lat[target];
+            double targetLon = g.lon[target];
+            space.set(source, 0.0, -1);
+            pq.push(source, 0.0);
+            int settledCount = 0;
+            int relaxedCount = 0;
+
+            while (!pq.isEmpty()) {
+                int current = pq.pop();
+                settledCount++;
+                if (current == target) {
+                    break;
+                }
+                for (int e = g.offsets[current]; e < g.offsets[current + 1]; e++) {
+                    int next = g.targets[e];
+                    relaxedCount++;
+                    double newDistance = space.dist[current] + g.weight(current, e);
+                    if (newDistance < space.dist(next)) {
+                        space.set(next, newDistance, current);
+                        double key = newDistance;
+                        if (goalDirected) {
+                            key += distance(g.lat[next], g.lon[next], targetLat, targetLon);
+                        }
+                        else if (landmarks != null) {
+                            key += landmarks.lowerBound(next, target);
+                        }
+                        pq.push(next, key);
+                    }
+                }
+            }
+            workspace.settled = settledCount;
+            workspace.relaxed = relaxedCount;
+            return g.pathIds(space.pred, target);
+        }
+
+        /**
+         * @return the calling thread's search arrays for g, made the first
+         * time the thread searches g and reused by every search after
+         */
+        private Workspace workspace(Graph g) {
+            Workspace workspace = myWorkspaces.get();
+            if (workspace == null || workspace.graph != g) {
+                workspace = new Workspace(g);
+                myWorkspaces.set(workspace);
+            }
+            return workspace;
+        }
+
+        /**
+         * Routes between points that may lie part way along edges. Each end
+         * is a vertex or is located on the edge it was snapped to; a point
+         * on neither has no route.
+         */
+        private RouteResult edgeRoute(Graph g, Point start, int source, Point end, int target) {
+            if (!isFinite(start) || !isFinite(end)) {
+                throw new IllegalArgumentException("not possible");
+            }
+            EdgeSnap from = source >= 0 ? new EdgeSnap(source) : myEdges.get().locate(start.getLat(), start.getLon());
+            EdgeSnap to = target >= 0 ? new EdgeSnap(target) : myEdges.get().locate(end.getLat(), end.getLon());
+            if (from == null || to == null || g.component[from.from] != g.component[to.from]) {
+                throw new IllegalArgumentException("not possible");
+            }
+            return edgeSearch(g, start, from, end, to);
+        }
+
+        /**
+         * Dijkstra from both ends of start's edge, each seeded with its
+         * distance from start, until the queue minimum reaches the best
+         * distance to end through either end of end's edge. Two points on
+         * the same edge may also be joined directly along it.
+         */
+        private RouteResult edgeSearch(Graph g, Point start, EdgeSnap from, Point end, EdgeSnap to) {
+            Workspace workspace = workspace(g);
+            SearchSpace space = workspace.forward();
+            IndexedMinHeap pq = space.heap;
+            for (int side = 0; side < 2; side++) {
+                int v = side == 0 ? from.from : from.to;
+                double d = distance(start.getLat(), start.getLon(), g.lat[v], g.lon[v]);
+                if (d < space.dist(v)) {
+                    space.set(v, d, -1);
+                    pq.push(v, d);
+                }
+            }
+            double best = Double.POSITIVE_INFINITY;
+            int last = -1;
+            if (!from.isVertex() && !to.isVertex() && from.sameEdge(to)) {
+                best = start.distance(end);
+            }
+            int settledCount = 0;
+            int relaxedCount = 0;
+
+            while (!pq.isEmpty() && pq.minKey() < best) {
+                int current = pq.pop();
+                settledCount++;
+                if (current == to.from || current == to.to) {
+                    double d = space.dist[current]
+                            + distance(g.lat[current], g.lon[current], end.getLat(), end.getLon());
+                    if (d < best) {
+                        best = d;
+                        last = current;
+                    }
+                }
+                for (int e = g.offsets[current]; e < g.offsets[current + 1]; e++) {
+                    int next = g.targets[e];
+                    relaxedCount++;
+                    double newDistance = space.dist[current] + g.weight(current, e);
+                    if (newDistance < space.dist(next)) {
+                        space.set(next, newDistance, current);
+                        pq.push(next, newDistance);
+                    }
+                }
+            }
+            workspace.settled = settledCount;
+            workspace.relaxed = relaxedCount;
+            int[] ids = last < 0 ? new int[0] : g.pathIds(space.pred, last);
+            return new RouteResult(g, ids, false, from.isVertex() ? null : start, to.isVertex() ? null : end);
+        }
+
+        /**
+         * Dijkstra from source over the edges and from target over the same
+         * edges reversed, which are the same edges since the graph is
+         * undirected. Each step advances the side with the smaller queue
+         * minimum. mu is the shortest source-target distance seen through
+         * a vertex reached by both searches; once the two minimums add up
+         * to at least mu, no unexplored path can be shorter.
+         */
+        private int[] bidirectionalSearch(Graph g, int source, int target) {
+            Workspace workspace = workspace(g);
+            SearchSpace spaceForward = workspace.forward();
+            SearchSpace spaceBackward = workspace.backward();
+            IndexedMinHeap forward = spaceForward.heap;
+            IndexedMinHeap backward = spaceBackward.heap;
+            spaceForward.set(source, 0.0, -1);
+            spaceBackward.set(target, 0.0, -1);
+            forward.push(source, 0.0);
+            backward.push(target, 0.0);
+            double mu = Double.POSITIVE_INFINITY;
+            int meet = -1;
+            int settledCount = 0;
+            int relaxedCount = 0;
+
+            while (!forward.isEmpty() && !backward.isEmpty()
+                   && forward.minKey() + backward.minKey() < mu) {
+                boolean isForward = forward.minKey() <= backward.minKey();
+                SearchSpace space = isForward ? spaceForward : spaceBackward;
+                SearchSpace other = isForward ? spaceBackward : spaceForward;
+                IndexedMinHeap pq = space.heap;
+                int current = pq.pop();
+                settledCount++;
+                for (int e = g.offsets[current]; e < g.offsets[current + 1]; e++) {
+                    int next = g.targets[e];
+                    relaxedCount++;
+                    double newDistance = space.dist[current] + g.weight(current, e);
+                    if (newDistance < space.dist(next)) {
+                        space.set(next, newDistance, current);
+                        pq.push(next, newDistance);
+                    }
+                    if (space.dist(next) + other.dist(next) < mu) {
+                        mu = space.dist(next) + other.dist(next);
+                        meet = next;
+                    }
+                }
+            }
+            workspace.settled = settledCount;
+            workspace.relaxed = relaxedCount;
+            return g.pathIds(spaceForward.pred, meet, spaceBackward.pred);
+        }
+
+        /**
+         * Bidirectional Dijkstra restricted to upward edges of the
+         * hierarchy. A side stops once its queue minimum reaches the best
+         * meeting distance; the path found goes up from source and down to
+         * target, and its shortcuts are then unpacked.
+         */
+        private int[] hierarchySearch(Graph g, ContractionHierarchy ch, int source, int target) {
+            Workspace workspace = workspace(g);
+            SearchSpace spaceForward = workspace.forward();
+            SearchSpace spaceBackward = workspace.backward();
+            IndexedMinHeap forward = spaceForward.heap;
+            IndexedMinHeap backward = spaceBackward.heap;
+            spaceForward.set(source, 0.0, -1);
+            spaceBackward.set(target, 0.0, -1);
+            forward.push(source, 0.0);
+            backward.push(target, 0.0);
+            double mu = Double.POSITIVE_INFINITY;
+            int meet = -1;
+            int settledCount = 0;
+            int relaxedCount = 0;
+
+            while (true) {
+                boolean forwardOpen = !forward.isEmpty() && forward.minKey() < mu;
+                boolean backwardOpen = !backward.isEmpty() && backward.minKey() < mu;
+                if (!forwardOpen && !backwardOpen) {
+                    break;
+                }
+                boolean isForward = forwardOpen
+                    && (!backwardOpen || forward.minKey() <= backward.minKey());
+                SearchSpace space = isForward ? spaceForward : spaceBackward;
+                SearchSpace other = isForward ? spaceBackward : spaceForward;
+                IndexedMinHeap pq = space.heap;
+                int current = pq.pop();
+                settledCount++;
+                if (space.dist[current] + other.dist(current) < mu) {
+                    mu = space.dist[current] + other.dist(current);
+                    meet = current;
+                }
+                for (int e = ch.upOffsets[current]; e < ch.upOffsets[current + 1]; e++) {
+                    int next = ch.upTargets[e];
+                    relaxedCount++;
+                    double newDistance = space.dist[current] + ch.upWeights[e];
+                    if (newDistance < space.dist(next)) {
+                        space.set(next, newDistance, current);
+                        pq.push(next, newDistance);
+                    }
+                }
+            }
+            workspace.settled = settledCount;
+            workspace.relaxed = relaxedCount;
+
+            int[] predForward = spaceForward.pred;
+            int[] predBackward = spaceBackward.pred;
+            IntList up = workspace.up;
+            up.clear();
+            for (int v = meet; v >= 0; v = predForward[v]) {
+                up.add(v);
+            }
+            IntList path = workspace.path;
+            path.clear();
+            path.add(source);
+            IntList stack = workspace.stack;
+            for (int i = up.size() - 1; i > 0; i--) {
+                ch.unpack(up.get(i), up.get(i - 1), path, stack);
+            }
+            for (int v = meet; predBackward[v] >= 0; v = predBackward[v]) {
+                ch.unpack(v, predBackward[v], path, stack);
+            }
+            return path.toArray();
+        }
+    }
+
+    /**
+     * The points of the graph within a distance budget of a source and
+     * the shortest way to each, held in three arrays in order of
+     * distance: the vertex, the index of its parent on the way back to
+     * the source, and its distance as a float. Index 0 is the source,
+     * whose parent is -1, and a parent always comes before its children.
+     */
+    public static final class ShortestPathTree {
+        private final Graph myGraph;
+        private final int[] myVertices;
+        private final int[] myParents;
+        private final float[] myDist;
+        private final double myMiles;
+
+        ShortestPathTree(Graph g, int[] vertices, int[] parents, float[] dist, double miles) {
+            myGraph = g;
+            myVertices = vertices;
+            myParents = parents;
+            myDist = dist;
+            myMiles = miles;
+        }
+
+        /**
+         * @return number of points in reach, the source included
+         */
+        public int size() {
+            return myVertices.length;
+        }
+
+        /**
+         * @return the budget the tree was grown to
+         */
+        public double getMiles() {
+            return myMiles;
+        }
+
+        /**
+         * @return the k-th closest point by road, the source for k = 0
+         */
+        public Point getPoint(int k) {
+            return myGraph.point(myVertices[k]);
+        }
+
+        /**
+         * @return index of the point before the k-th on its shortest
+         * path from the source, -1 for the source
+         */
+        public int getParent(int k) {
+            return myParents[k];
+        }
+
+        /**
+         * @return road distance from the source to the k-th point
+         */
+        public float getDistance(int k) {
+            return myDist[k];
+        }
+
+        /**
+         * @return every point in reach, in order of distance
+         */
+        public List<Point> getPoints() {
+            List<Point> points = new ArrayList<>(myVertices.length);
+            for (int v : myVertices) {
+                points.add(myGraph.point(v));
+            }
+            return points;
+        }
+
+        /**
+         * @return the shortest path from the source to the k-th point
+         */
+        public List<Point> pathTo(int k) {
+            List<Point> path = new ArrayList<>();
+            for (int i = k; i >= 0; i = myParents[i]) {
+                path.add(myGraph.point(myVertices[i]));
+            }
+            Collections.reverse(path);
+            return path;
+        }
+    }
+
+    /**
+     * What can be reached from a source within a distance budget: the
+     * points of a ShortestPathTree, and the convex hull of those points
+     * together with the place on each road leaving them where the
+     * budget runs out. A hull overstates the area where roads reach
+     * around a bay or a mountain, but it is cheap and always a simple
+     * polygon.
+     */
+    public static final class Isochrone {
+        private final ShortestPathTree myTree;
+        private final List<Point> myBoundary;
+
+        Isochrone(ShortestPathTree tree) {
+            myTree = tree;
+            Graph g = tree.myGraph;
+            List<Point> edge = new ArrayList<>(tree.getPoints());
+            for (int k = 0; k < tree.size(); k++) {
+                int u = tree.myVertices[k];
+                double left = tree.myMiles - tree.myDist[k];
+                for (int e = g.offsets[u]; e < g.offsets[u + 1]; e++) {
+                    double w = g.weight(u, e);
+                    if (w > left) {
+                        int v = g.targets[e];
+                        double t = left / w;
+                        edge.add(new Point(g.lat[u] + t * (g.lat[v] - g.lat[u]),
+                                           g.lon[u] + t * (g.lon[v] - g.lon[u])));
+                    }
+                }
+            }
+            myBoundary = convexHull(edge);
+        }
+
+        /**
+         * @return the shortest path tree of the points in reach
+         */
+        public ShortestPathTree getTree() {
+            return myTree;
+        }
+
+        /**
+         * @return the points of the graph in reach, in order of distance
+         */
+        public List<Point> getPoints() {
+            return myTree.getPoints();
+        }
+
+        /**
+         * @return corners of the boundary polygon counterclockwise, the
+         * last not repeating the first; just the source if nothing else
+         * is in reach
+         */
+        public List<Point> getBoundary() {
+            return myBoundary;
+        }
+
+        /**
+         * Andrew's monotone chain, with longitude as x and latitude as y.
+         * @return corners of the hull of points counterclockwise, each
+         * once, however often it appears in points
+         */
+        static List<Point> convexHull(List<Point> points) {
+            Point[] sorted = points.toArray(new Point[0]);
+            Arrays.sort(sorted, (a, b) -> a.getLon() != b.getLon()
+                                        ? Double.compare(a.getLon(), b.getLon())
+                                        : Double.compare(a.getLat(), b.getLat()));
+            // repeats are now side by side; drop them so no corner appears twice
+            int count = 0;
+            for (Point p : sorted) {
+                if (count == 0 || !p.equals(sorted[count - 1])) {
+                    sorted[count++] = p;
+                }
+            }
+            if (count < 3) {
+                return new ArrayList<>(Arrays.asList(sorted).subList(0, count));
+            }
+            Point[] hull = new Point[2 * count];
+            int size = 0;
+            for (int i = 0; i < count; i++) {
+                while (size >= 2 && turn(hull[size - 2], hull[size - 1], sorted[i]) <= 0) {
+                    size--;
+                }
+                hull[size++] = sorted[i];
+            }
+            int lower = size + 1;
+            for (int i = count - 2; i >= 0; i--) {
+                while (size >= lower && turn(hull[size - 2], hull[size - 1], sorted[i]) <= 0) {
+                    size--;
+                }
+                hull[size++] = sorted[i];
+            }
+            return new ArrayList<>(Arrays.asList(hull).subList(0, size - 1));
+        }
+
+        // positive when o, a, b turn counterclockwise
+        private static double turn(Point o, Point a, Point b) {
+            return (a.getLon() - o.getLon()) * (b.getLat() - o.getLat())
+                 - (a.getLat() - o.getLat()) * (b.getLon() - o.getLon());
+        }
+    }
+
+    /**
+     * A route held as the ids of the vertices along it, plus its total
+     * distance, computed once. No Points are made until asked for:
+     * points() is a List<Point> view that makes each one as it is read,
+     * and coordinates() walks the latitudes and longitudes without
+     * making any. A route that starts or ends part way along an edge
+     * also holds that end point.
+     */
+    public static final class RouteResult {
+        private final Graph myGraph;
+        private final int[] myIds;
+        private final boolean myReversed;   // read myIds back to front
+        private final Point myHead;         // start off the vertices, else null
+        private final Point myTail;         // end off the vertices, else null
+        private final int mySize;
+        private final double myDistance;
+
+        RouteResult(Graph g, int[] ids, boolean reversed, Point head, Point tail) {
+            myGraph = g;
+            myIds = ids;
+            myReversed = reversed;
+            myHead = head;
+            myTail = tail;
+            mySize = ids.length + (head == null ? 0 : 1) + (tail == null ? 0 : 1);
+            // summed in order along the route, as routeDistance would
+            double d = 0.0;
+            for (int i = 0; i + 1 < mySize; i++) {
+                d += distance(lat(i), lon(i), lat(i + 1), lon(i + 1));
+            }
+            myDistance = d;
+        }
+
+        /**
+         * @return a route of just p, with no distance
+         */
+        static RouteResult at(Point p) {
+            return new RouteResult(null, new int[0], false, p, null);
+        }
+
+        /**
+         * @return number of points on the route, start and end included
+         */
+        public int size() {
+            return mySize;
+        }
+
+        /**
+         * @return total distance along the route in miles, the same as
+         * routeDistance(points())
+         */
+        public double getDistance() {
+            return myDistance;
+        }
+
+        /**
+         * @return latitude of the i-th point on the route
+         */
+        public double lat(int i) {
+            if (myHead != null && i == 0) {
+                return myHead.getLat();
+            }
+            int v = vertex(i);
+            return v >= 0 ? myGraph.lat[v] : myTail.getLat();
+        }
+
+        /**
+         * @return longitude of the i-th point on the route
+         */
+        public double lon(int i) {
+            if (myHead != null && i == 0) {
+                return myHead.getLon();
+            }
+            int v = vertex(i);
+            return v >= 0 ? myGraph.lon[v] : myTail.getLon();
+        }
+
+        // vertex at position i, -1 for the tail
+        private int vertex(int i) {
+            int k = myHead == null ? i : i - 1;
+            if (k < 0 || i >= mySize) {
+                throw new IndexOutOfBoundsException(i);
+            }
+            if (k >= myIds.length) {
+                return -1;
+            }
+            return myIds[myReversed ? myIds.length - 1 - k : k];
+        }
+
+        /**
+         * @return the route's points as a read-only list that makes
+         * each Point when it is read
+         */
+        public List<Point> points() {
+            return new PointView(this);
+        }
+
+        /**
+         * @return a cursor over the route's coordinates, start first
+         */
+        public Coordinates coordinates() {
+            return new Coordinates(this);
+        }
+
+        static final class PointView extends AbstractList<Point> implements RandomAccess {
+            private final RouteResult myRoute;
+
+            PointView(RouteResult route) {
+                myRoute = route;
+            }
+
+            RouteResult result() {
+                return myRoute;
+            }
+
+            @Override
+            public Point get(int i) {
+                return new Point(myRoute.lat(i), myRoute.lon(i));
+            }
+
+            @Override
+            public int size() {
+                return myRoute.size();
+            }
+        }
+    }
+
+    /**
+     * A route through several stops: the joined route, and where each leg
+     * starts in it and how long it is. Leg i runs from stop i to stop
+     * i + 1, from point getLegStart(i) to point getLegStart(i + 1) of
+     * the route, the last leg ending at the route's last point.
+     */
+    public static final class MultiStopRoute {
+        private final Graph myGraph;
+        private final int[] myStops;
+        private final RouteResult myRoute;
+        private final int[] myLegStarts;
+        private final double[] myLegDistances;
+
+        MultiStopRoute(Graph g, int[] stops, int[][] legs) {
+            myGraph = g;
+            myStops = stops;
+            myLegStarts = new int[legs.length];
+            int size = 1;
+            for (int[] leg : legs) {
+                size += leg.length - 1;
+            }
+            // consecutive legs share the stop between them
+            int[] ids = new int[size];
+            ids[0] = stops[0];
+            int at = 0;
+            for (int i = 0; i < legs.length; i++) {
+                myLegStarts[i] = at;
+                System.arraycopy(legs[i], 1, ids, at + 1, legs[i].length - 1);
+                at += legs[i].length - 1;
+            }
+            myRoute = new RouteResult(g, ids, false, null, null);
+            myLegDistances = new double[legs.length];
+            for (int i = 0; i < legs.length; i++) {
+                int end = i + 1 < legs.length ? myLegStarts[i + 1] : size - 1;
+                double d = 0.0;
+                for (int k = myLegStarts[i]; k < end; k++) {
+                    d += distance(g.lat[ids[k]], g.lon[ids[k]], g.lat[ids[k + 1]], g.lon[ids[k + 1]]);
+                }
+                myLegDistances[i] = d;
+            }
+        }
+
+        /**
+         * @return the whole route, first stop to last
+         */
+        public RouteResult getRoute() {
+            return myRoute;
+        }
+
+        /**
+         * @return total distance of the route
+         */
+        public double getDistance() {
+            return myRoute.getDistance();
+        }
+
+        /**
+         * @return the graph points the stops were snapped to, in order
+         */
+        public List<Point> getStops() {
+            List<Point> stops = new ArrayList<>(myStops.length);
+            for (int v : myStops) {
+                stops.add(myGraph.point(v));
+            }
+            return stops;
+        }
+
+        /**
+         * @return number of legs, one fewer than the stops
+         */
+        public int getLegCount() {
+            return myLegDistances.length;
+        }
+
+        /**
+         * @return distance of leg i, 0 if its stops snapped together
+         */
+        public double getLegDistance(int i) {
+            return myLegDistances[i];
+        }
+
+        /**
+         * @return index in the route's points where leg i starts
+         */
+        public int getLegStart(int i) {
+            return myLegStarts[i];
+        }
+    }
+
+    /**
+     * Walks the coordinates of a route without making Points:
+     * while (c.next()) { use c.lat() and c.lon() }.
+     */
+    public static final class Coordinates {
+        private final RouteResult myRoute;
+        private int myIndex = -1;
+
+        Coordinates(RouteResult route) {
+            myRoute = route;
+        }
+
+        /**
+         * Moves to the next point.
+         * @return false once past the end of the route
+         */
+        public boolean next() {
+            return ++myIndex < myRoute.size();
+        }
+
+        public double lat() {
+            return myRoute.lat(myIndex);
+        }
+
+        public double lon() {
+            return myRoute.lon(myIndex);
+        }
+    }
+
+    /**
+     * Binary min-heap of vertex ids keyed by double, with each vertex's
+     * slot in the heap tracked so that a lower key moves the existing
+     * entry up instead of adding a second one. Holds at most one entry
+     * per vertex and never boxes.
+     */
+    static final class IndexedMinHeap {
+        private final int[] myHeap;
+        private final double[] myKeys;
+        private final int[] myPos; // slot of each vertex in myHeap, -1 if absent
+        private int mySize;
+
+        IndexedMinHeap(int capacity) {
+            myHeap = new int[capacity];
+            myKeys = new double[capacity];
+            myPos = new int[capacity];
+            Arrays.fill(myPos, -1);
+        }
+
+        boolean isEmpty() {
+            return mySize == 0;
+        }
+
+        /**
+         * @return key of the vertex at the top of the heap
+         */
+        double minKey() {
+            return myKeys[myHeap[0]];
+        }
+
+        /**
+         * Adds v with the given key, or lowers its key if v is already
+         * in the heap with a larger one.
+         */
+        void push(int v, double key) {
+            int slot = myPos[v];
+            if (slot < 0) {
+                slot = mySize++;
+            }
+            else if (key >= myKeys[v]) {
+                return;
+            }
+            myKeys[v] = key;
+            siftUp(slot, v);
+        }
+
+        /**
+         * Removes and returns the vertex with the smallest key.
+         */
+        int pop() {
+            int top = myHeap[0];
+            myPos[top] = -1;
+            int last = myHeap[--mySize];
+            if (mySize > 0) {
+                siftDown(0, last);
+            }
+            return top;
+        }
+
+        /**
+         * Empties the heap in time proportional to its size.
+         */
+        void clear() {
+            for (int i = 0; i < mySize; i++) {
+                myPos[myHeap[i]] = -1;
+            }
+            mySize = 0;
+        }
+
+        private void siftUp(int slot, int v) {
+            double key = myKeys[v];
+            while (slot > 0) {
+                int parent = (slot - 1) >>> 1;
+                int p = myHeap[parent];
+                if (myKeys[p] <= key) {
+                    break;
+                }
+                myHeap[slot] = p;
+                myPos[p] = slot;
+                slot = parent;
+            }
+            myHeap[slot] = v;
+            myPos[v] = slot;
+        }
+
+        private void siftDown(int slot, int v) {
+            double key = myKeys[v];
+            int half = mySize >>> 1;
+            while (slot < half) {
+                int child = 2 * slot + 1;
+                int c = myHeap[child];
+                int right = child + 1;
+                if (right < mySize && myKeys[myHeap[right]] < myKeys[c]) {
+                    child = right;
+                    c = myHeap[child];
+                }
+                if (key <= myKeys[c]) {
+                    break;
+                }
+                myHeap[slot] = c;
+                myPos[c] = slot;
+                slot = child;
+            }
+            myHeap[slot] = v;
+            myPos[v] = slot;
+        }
+    }
+
+    /**
+     * Growable array of ints, for building paths of vertex ids.
+     */
+    static final class IntList {
+        private int[] myValues = new int[16];
+        private int mySize;
+
+        void add(int value) {
+            if (mySize == myValues.length) {
+                myValues = Arrays.copyOf(myValues, 2 * mySize);
+            }
+            myValues[mySize++] = value;
+        }
+
+        int get(int index) {
+            return myValues[index];
+        }
+
+        int size() {
+            return mySize;
+        }
+
+        void clear() {
+            mySize = 0;
+        }
+
+        void truncate(int size) {
+            mySize = size;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(myValues, mySize);
+        }
+    }
+
+    /**
+     * Distances and predecessors for one search direction, with each
+     * entry stamped by the search that wrote it. Starting a search bumps
+     * the generation, which makes every old entry read as unreached, so
+     * nothing graph-sized is cleared or allocated per query; only the
+     * heap is emptied, in time proportional to what the last search left.
+     */
+    static final class SearchSpace {
+        final double[] dist;   // valid where stamped with this generation
+        final int[] pred;
+        final IndexedMinHeap heap;
+        private final int[] myStamp;
+        private int myGeneration;
+
+        SearchSpace(int size) {
+            dist = new double[size];
+            pred = new int[size];
+            heap = new IndexedMinHeap(size);
+            myStamp = new int[size];
+        }
+
+        /**
+         * Forgets the previous search.
+         */
+        void reset() {
+            heap.clear();
+            if (myGeneration == Integer.MAX_VALUE) {
+                Arrays.fill(myStamp, 0);
+                myGeneration = 0;
+            }
+            myGeneration++;
+        }
+
+        /**
+         * @return distance found to v by this search, infinite if v is
+         * unreached
+         */
+        double dist(int v) {
+            return myStamp[v] == myGeneration ? dist[v] : Double.POSITIVE_INFINITY;
+        }
+
+        /**
+         * Records a distance to v and the vertex before it, -1 for a
+         * start of the search; pred links can then be followed as is.
+         */
+        void set(int v, double d, int before) {
+            myStamp[v] = myGeneration;
+            dist[v] = d;
+            pred[v] = before;
+        }
+    }
+
+    /**
+     * One thread's search state for one graph: a search space per
+     * direction, the backward one made on first use, and lists for
+     * unpacking hierarchy paths.
+     */
+    static final class Workspace {
+        final Graph graph;
+        final IntList up = new IntList();
+        final IntList path = new IntList();
+        final IntList stack = new IntList();
+        int settled;           // by the thread's latest route
+        int relaxed;
+        private final SearchSpace myForward;
+        private SearchSpace myBackward;
+        private int[] mySlots;
+
+        Workspace(Graph g) {
+            graph = g;
+            myForward = new SearchSpace(g.size);
+        }
+
+        SearchSpace forward() {
+            myForward.reset();
+            return myForward;
+        }
+
+        SearchSpace backward() {
+            if (myBackward == null) {
+                myBackward = new SearchSpace(graph.size);
+            }
+            myBackward.reset();
+            return myBackward;
+        }
+
+        /**
+         * @return an array over the vertices for a search to note where
+         * each vertex it settles went, made on first use and never
+         * cleared, so only entries the search wrote are meaningful
+         */
+        int[] slots() {
+            if (mySlots == null) {
+                mySlots = new int[graph.size];
+            }
+            return mySlots;
+        }
+    }
+
+    /**
+     * Bounded least-recently-used cache of routes between vertex pairs.
+     * Each route is kept once, as vertex ids from the lower id to the
+     * higher, so it also answers the trip back, the graph being
+     * undirected. Pairs are spread over shards with a lock each, so
+     * threads looking up different pairs rarely wait on each other. The
+     * route and byte limits hold for the cache as a whole: once a route
+     * takes it over either, the least recently used routes of the other
+     * shards in turn are evicted, then those of the route's own shard,
+     * so the cache evicts roughly, not exactly, in order of last use. A
+     * route bigger than the byte limit by itself is not kept.
+     */
+    static final class RouteCache {
+        private static final int SHARDS = 16;
+        // map entry, boxed key and array header, beyond 4 bytes an id
+        private static final long ENTRY_BYTES = 96;
+
+        private final Shard[] myShards = new Shard[SHARDS];
+        private final int myMaxRoutes;
+        private final long myMaxBytes;
+        private final AtomicInteger myRoutes = new AtomicInteger();
+        private final AtomicLong myBytes = new AtomicLong();
+        private final LongAdder myHits = new LongAdder();
+        private final LongAdder myMisses = new LongAdder();
+
+        RouteCache(int maxRoutes, long maxBytes) {
+            myMaxRoutes = maxRoutes;
+            myMaxBytes = maxBytes;
+            for (int i = 0; i < SHARDS; i++) {
+                myShards[i] = new Shard();
+            }
+        }
+
+        /**
+         * @return the cached route between source and target from the
+         * lower id to the higher, or null if there is none
+         */
+        int[] get(int source, int target) {
+            long key = key(source, target);
+            Shard shard = myShards[shard(key)];
+            int[] ids;
+            synchronized (shard) {
+                ids = shard.get(key);
+            }
+            (ids == null ? myMisses : myHits).increment();
+            return ids;
+        }
+
+        /**
+         * Caches ids, a route from source to target.
+         */
+        void put(int source, int target, int[] ids) {
+            if (bytes(ids) > myMaxBytes) {
+                return;
+            }
+            if (source > target) {
+                int[] reversed = new int[ids.length];
+                for (int i = 0; i < ids.length; i++) {
+                    reversed[i] = ids[ids.length - 1 - i];
+                }
+                ids = reversed;
+            }
+            long key = key(source, target);
+            int home = shard(key);
+            Shard shard = myShards[home];
+            synchronized (shard) {
+                int[] old = shard.put(key, ids);
+                if (old == null) {
+                    myRoutes.incrementAndGet();
+                }
+                myBytes.addAndGet(bytes(ids) - (old == null ? 0 : bytes(old)));
+            }
+            // one lock at a time, so evicting threads never wait on each other in a cycle
+            for (int i = 1; i <= SHARDS && overLimit(); i++) {
+                Shard victim = myShards[(home + i) & (SHARDS - 1)];
+                synchronized (victim) {
+                    Iterator<int[]> eldest = victim.values().iterator();
+                    // the route just added is left for last in its own shard
+                    int keep = victim == shard ? 1 : 0;
+                    while (overLimit() && victim.size() > keep && eldest.hasNext()) {
+                        myRoutes.decrementAndGet();
+                        myBytes.addAndGet(-bytes(eldest.next()));
+                        eldest.remove();
+                    }
+                }
+            }
+        }
+
+        private boolean overLimit() {
+            return myRoutes.get() > myMaxRoutes || myBytes.get() > myMaxBytes;
+        }
+
+        long hits() {
+            return myHits.sum();
+        }
+
+        long misses() {
+            return myMisses.sum();
+        }
+
+        /**
+         * @return routes cached now
+         */
+        int size() {
+            return myRoutes.get();
+        }
+
+        private static long key(int a, int b) {
+            return a < b ? (long) a << 32 | b : (long) b << 32 | a;
+        }
+
+        private static int shard(long key) {
+            return (int) ((key ^ key >>> 32) * 0x9E3779B1L >>> 28) & (SHARDS - 1);
+        }
+
+        private static long bytes(int[] ids) {
+            return ENTRY_BYTES + 4L * ids.length;
+        }
+
+        // access-ordered, so iteration starts at the least recently used
+        private static final class Shard extends LinkedHashMap<Long, int[]> {
+            private static final long serialVersionUID = 1L;
+
+            Shard() {
+                super(16, 0.75f, true);
+            }
+        }
+    }
+
+    /**
+     * Contraction hierarchy over a Graph. Vertices are contracted one
+     * at a time, least important first; contracting v removes it and
+     * adds a shortcut u-w of length u-v-w for each pair of its
+     * remaining neighbors whose shortest path runs through v. Every
+     * edge and shortcut is then stored once, with whichever endpoint
+     * was contracted first, so a query searches upward from both ends
+     * over short lists and unpacks shortcuts into original edges.
+     */
+    static final class ContractionHierarchy {
+        private static final int MAGIC = 0x52474348; // "RGCH"
+        private static final int VERSION = 1;
+
+        final long fingerprint;
+        final int[] rank;
+        final int[] upOffsets;
+        final int[] upTargets;
+        final double[] upWeights;
+        final int[] upMiddle; // vertex a shortcut bypasses, -1 for graph edges
+
+        ContractionHierarchy(long fingerprint, int[] rank, int[] upOffsets, int[] upTargets,
+                             double[] upWeights, int[] upMiddle) {
+            this.fingerprint = fingerprint;
+            this.rank = rank;
+            this.upOffsets = upOffsets;
+            this.upTargets = upTargets;
+            this.upWeights = upWeights;
+            this.upMiddle = upMiddle;
+        }
+
+        static ContractionHierarchy build(Graph g) {
+            return new Builder(g).build();
+        }
+
+        /**
+         * Appends to path the original vertices after a on the edge or
+         * shortcut between a and b, ending with b, using stack, which
+         * is cleared first, for the shortcuts still to expand.
+         */
+        void unpack(int a, int b, IntList path, IntList stack) {
+            stack.clear();
+            stack.add(b);
+            stack.add(a);
+            while (stack.size() > 0) {
+                int from = stack.get(stack.size() - 1);
+                int to = stack.get(stack.size() - 2);
+                stack.truncate(stack.size() - 2);
+                int middle = upMiddle[edge(from, to)];
+                if (middle < 0) {
+                    path.add(to);
+                }
+                else {
+                    stack.add(to);
+                    stack.add(middle);
+                    stack.add(middle);
+                    stack.add(from);
+                }
+            }
+        }
+
+        // index of the upward edge joining a and b
+        private int edge(int a, int b) {
+            int low = rank[a] < rank[b] ? a : b;
+            int high = low == a ? b : a;
+            for (int e = upOffsets[low]; e < upOffsets[low + 1]; e++) {
+                if (upTargets[e] == high) {
+                    return e;
+                }
+            }
+            throw new IllegalStateException("no edge between " + a + " and " + b);
+        }
+
+        void save(String filename) throws IOException {
+            try (FileOutputStream out = new FileOutputStream(filename);
+                 SnapshotWriter writer = new SnapshotWriter(out.getChannel(), MAGIC, VERSION)) {
+                writer.putLong(fingerprint);
+                writer.putInt(rank.length);
+                writer.putInt(upTargets.length);
+                writer.putInts(rank);
+                writer.putInts(upOffsets);
+                writer.putInts(upTargets);
+                writer.putInts(upMiddle);
+                writer.putDoubles(upWeights);
+            }
+        }
+
+        static ContractionHierarchy load(FileChannel channel, Graph g) throws IOException {
+            try (SnapshotReader in = new SnapshotReader(channel, MAGIC, VERSION)) {
+                long fingerprint = in.nextLong();
+                int n = in.nextInt();
+                int edges = in.nextInt();
+                if (fingerprint != g.fingerprint() || n != g.size) {
+                    throw new IOException("hierarchy was built for a different graph");
+                }
+                int[] rank = in.nextInts(n);
+                int[] upOffsets = in.nextInts(n + 1);
+                int[] upTargets = in.nextInts(edges);
+                int[] upMiddle = in.nextInts(edges);
+                double[] upWeights = in.nextDoubles(edges);
+                return new ContractionHierarchy(fingerprint, rank, upOffsets, upTargets,
+                                                upWeights, upMiddle);
+            }
+        }
+
+        /**
+         * Contracts vertices in order of priority: twice the shortcuts
+         * needed minus edges removed, plus neighbors already contracted
+         * and depth in the hierarchy so far, which spread the order out.
+         * Priorities go stale as the graph changes; a popped vertex is
+         * re-queued if its fresh priority is no longer the smallest. A
+         * shortcut is skipped when a witness search, bounded in distance
+         * and settled vertices and stopped once all of v's other
+         * neighbors are settled, finds a path at least as short that
+         * avoids v.
+         */
+        private static final class Builder {
+            private static final int WITNESS_SETTLE_LIMIT = 100;
+
+            private final Graph myGraph;
+            private final int[][] myNeighbors;
+            private final double[][] myWeights;
+            private final int[][] myMiddles;
+            private final int[] myDegree;
+            private final int[] myContractedNeighbors;
+            private final int[] myLevel;
+            private final IndexedMinHeap myWitnessHeap;
+            private final double[] myWitnessDist;
+            private final int[] myWitnessStamp;
+            private final int[] myTargetStamp;
+            private int myGeneration;
+            private final IntList myShortcuts = new IntList();
+            private double[] myShortcutWeights = new double[16];
+
+            Builder(Graph g) {
+                myGraph = g;
+                int n = g.size;
+                myNeighbors = new int[n][];
+                myWeights = new double[n][];
+                myMiddles = new int[n][];
+                myDegree = new int[n];
+                myContractedNeighbors = new int[n];
+                myLevel = new int[n];
+                myWitnessHeap = new IndexedMinHeap(n);
+                myWitnessDist = new double[n];
+                myWitnessStamp = new int[n];
+                myTargetStamp = new int[n];
+                for (int v = 0; v < n; v++) {
+                    int capacity = Math.max(2, g.degree(v));
+                    myNeighbors[v] = new int[capacity];
+                    myWeights[v] = new double[capacity];
+                    myMiddles[v] = new int[capacity];
+                }
+                for (int u = 0; u < n; u++) {
+                    for (int e = g.offsets[u]; e < g.offsets[u + 1]; e++) {
+                        if (g.targets[e] != u) {
+                            addEdge(u, g.targets[e], g.weight(u, e), -1);
+                        }
+                    }
+                }
+            }
+
+            ContractionHierarchy build() {
+                int n = myGraph.size;
+                int[] rank = new int[n];
+                int[][] upTargets = new int[n][];
+                double[][] upWeights = new double[n][];
+                int[][] upMiddles = new int[n][];
+                IndexedMinHeap order = new IndexedMinHeap(n);
+                for (int v = 0; v < n; v++) {
+                    order.push(v, priority(v));
+                }
+                int next = 0;
+                while (!order.isEmpty()) {
+                    int v = order.pop();
+                    double p = priority(v);
+                    if (!order.isEmpty() && p > order.minKey()) {
+                        order.push(v, p);
+                        continue;
+                    }
+                    rank[v] = next++;
+                    int d = myDegree[v];
+                    upTargets[v] = Arrays.copyOf(myNeighbors[v], d);
+                    upWeights[v] = Arrays.copyOf(myWeights[v], d);
+                    upMiddles[v] = Arrays.copyOf(myMiddles[v], d);
+                    contract(v);
+                    for (int i = 0; i < d; i++) {
+                        int u = upTargets[v][i];
+                        myContractedNeighbors[u]++;
+                        myLevel[u] = Math.max(myLevel[u], myLevel[v] + 1);
+                    }
+                }
+
+                int[] offsets = new int[n + 1];
+                for (int v = 0; v < n; v++) {
+                    offsets[v + 1] = offsets[v] + upTargets[v].length;
+                }
+                int[] targets = new int[offsets[n]];
+                double[] weights = new double[offsets[n]];
+                int[] middles = new int[offsets[n]];
+                for (int v = 0; v < n; v++) {
+                    System.arraycopy(upTargets[v], 0, targets, offsets[v], upTargets[v].length);
+                    System.arraycopy(upWeights[v], 0, weights, offsets[v], upWeights[v].length);
+                    System.arraycopy(upMiddles[v], 0, middles, offsets[v], upMiddles[v].length);
+                }
+                return new ContractionHierarchy(myGraph.fingerprint(), rank, offsets, targets,
+                                                weights, middles);
+            }
+
+            private double priority(int v) {
+                return 2 * (findShortcuts(v) - myDegree[v]) + myContractedNeighbors[v] + myLevel[v];
+            }
+
+            // removes v, adding the shortcuts it needs
+            private void contract(int v) {
+                findShortcuts(v);
+                for (int i = 0; i < myDegree[v]; i++) {
+                    removeEdge(myNeighbors[v][i], v);
+                }
+                for (int i = 0; i < myShortcuts.size(); i += 2) {
+                    int a = myShortcuts.get(i);
+                    int b = myShortcuts.get(i + 1);
+                    double w = myShortcutWeights[i / 2];
+                    addEdge(a, b, w, v);
+                    addEdge(b, a, w, v);
+                }
+                myDegree[v] = 0;
+                myNeighbors[v] = null;
+                myWeights[v] = null;
+                myMiddles[v] = null;
+            }
+
+            /**
+             * Fills myShortcuts with the neighbor pairs of v that need a
+             * shortcut if v is contracted now.
+             * @return the number of shortcuts
+             */
+            private int findShortcuts(int v) {
+                myShortcuts.clear();
+                int d = myDegree[v];
+                double maxWeight = 0;
+                for (int i = 0; i < d; i++) {
+                    maxWeight = Math.max(maxWeight, myWeights[v][i]);
+                }
+                for (int i = 0; i < d - 1; i++) {
+                    int u = myNeighbors[v][i];
+                    double toU = myWeights[v][i];
+                    witnessSearch(u, v, i + 1, toU + maxWeight);
+                    for (int j = i + 1; j < d; j++) {
+                        int w = myNeighbors[v][j];
+                        double via = toU + myWeights[v][j];
+                        double witness = myWitnessStamp[w] == myGeneration
+                            ? myWitnessDist[w] : Double.POSITIVE_INFINITY;
+                        if (witness > via) {
+                            int count = myShortcuts.size() / 2;
+                            if (count == myShortcutWeights.length) {
+                                myShortcutWeights = Arrays.copyOf(myShortcutWeights, 2 * count);
+                            }
+                            myShortcutWeights[count] = via;
+                            myShortcuts.add(u);
+                            myShortcuts.add(w);
+                        }
+                    }
+                }
+                return myShortcuts.size() / 2;
+            }
+
+            // Dijkstra from source avoiding excluded, up to limit miles
+            private void witnessSearch(int source, int excluded, int first, double limit) {
+                myGeneration++;
+                int remaining = myDegree[excluded] - first;
+                for (int j = first; j < myDegree[excluded]; j++) {
+                    myTargetStamp[myNeighbors[excluded][j]] = myGeneration;
+                }
+                myWitnessHeap.clear();
+                myWitnessStamp[source] = myGeneration;
+                myWitnessDist[source] = 0.0;
+                myWitnessHeap.push(source, 0.0);
+                int settled = 0;
+                while (!myWitnessHeap.isEmpty() && settled < WITNESS_SETTLE_LIMIT) {
+                    if (myWitnessHeap.minKey() > limit) {
+                        break;
+                    }
+                    int current = myWitnessHeap.pop();
+                    settled++;
+                    if (myTargetStamp[current] == myGeneration && --remaining == 0) {
+                        break;
+                    }
+                    for (int i = 0; i < myDegree[current]; i++) {
+                        int next = myNeighbors[current][i];
+                        if (next == excluded) {
+                            continue;
+                        }
+                        double newDistance = myWitnessDist[current] + myWeights[current][i];
+                        if (myWitnessStamp[next] != myGeneration || newDistance < myWitnessDist[next]) {
+                            myWitnessStamp[next] = myGeneration;
+                            myWitnessDist[next] = newDistance;
+                            myWitnessHeap.push(next, newDistance);
+                        }
+                    }
+                }
+            }
+
+            // adds or shortens the edge u-v in u's list
+            private void addEdge(int u, int v, double w, int middle) {
+                int d = myDegree[u];
+                for (int i = 0; i < d; i++) {
+                    if (myNeighbors[u][i] == v) {
+                        if (w < myWeights[u][i]) {
+                            myWeights[u][i] = w;
+                            myMiddles[u][i] = middle;
+                        }
+                        return;
+                    }
+                }
+                if (d == myNeighbors[u].length) {
+                    myNeighbors[u] = Arrays.copyOf(myNeighbors[u], 2 * d);
+                    myWeights[u] = Arrays.copyOf(myWeights[u], 2 * d);
+                    myMiddles[u] = Arrays.copyOf(myMiddles[u], 2 * d);
+                }
+                myNeighbors[u][d] = v;
+                myWeights[u][d] = w;
+                myMiddles[u][d] = middle;
+                myDegree[u]++;
+            }
+
+            private void removeEdge(int u, int v) {
+                int last = --myDegree[u];
+                for (int i = 0; i <= last; i++) {
+                    if (myNeighbors[u][i] == v) {
+                        myNeighbors[u][i] = myNeighbors[u][last];
+                        myWeights[u][i] = myWeights[u][last];
+                        myMiddles[u][i] = myMiddles[u][last];
+                        return;
+                    }
+                }
+                myDegree[u]++;
+            }
+        }
+    }
+
+    /**
+     * Road distances from a few landmark vertices to every vertex, for
+     * ALT search. Since the graph is undirected, the triangle
+     * inequality gives |d(L, t) - d(L, v)| &lt;= d(v, t) for every
+     * landmark L, and the largest of these is the lower bound used.
+     * Distances are floats, laid out so that the count values for one
+     * vertex are adjacent; unreachable vertices have infinite distance.
+     */
+    static final class LandmarkTable {
+        private static final int MAGIC = 0x5247414c; // "RGAL"
+        private static final int VERSION = 1;
+        private static final long SEED = 201;
+
+        final long fingerprint;
+        final int count;
+        final LandmarkStrategy strategy;
+        final int[] landmarks;
+        final float[] dist; // dist[v * count + i] from landmarks[i] to v
+
+        LandmarkTable(long fingerprint, LandmarkStrategy strategy, int[] landmarks, float[] dist) {
+            this.fingerprint = fingerprint;
+            this.count = landmarks.length;
+            this.strategy = strategy;
+            this.landmarks = landmarks;
+            this.dist = dist;
+        }
+
+        /**
+         * @return a lower bound on the road distance from v to t
+         */
+        double lowerBound(int v, int t) {
+            int vi = v * count;
+            int ti = t * count;
+            float best = 0;
+            for (int i = 0; i < count; i++) {
+                float bound = Math.abs(dist[ti + i] - dist[vi + i]);
+                if (bound > best && bound != Float.POSITIVE_INFINITY) {
+                    best = bound;
+                }
+            }
+            return best;
+        }
+
+        static LandmarkTable build(Graph g, int count, LandmarkStrategy strategy) {
+            int n = g.size;
+            count = Math.min(count, n);
+            int[] landmarks = new int[count];
+            float[] table = new float[n * count];
+            double[] dist = new double[n];
+            int[] pred = new int[n];
+            double[] nearest = new double[n]; // FARTHEST: distance to closest landmark
+            Arrays.fill(nearest, Double.POSITIVE_INFINITY);
+            Random rand = new Random(SEED);
+            for (int i = 0; i < count; i++) {
+                int landmark;
+                if (i == 0) {
+                    landmark = farthest(g, randomVertex(g, rand), dist, pred);
+                }
+                else if (strategy == LandmarkStrategy.AVOID) {
+                    landmark = avoid(g, landmarks, i, table, count, randomVertex(g, rand), dist, pred);
+                }
+                else {
+                    landmark = 0;
+                    for (int v = 1; v < n; v++) {
+                        if (nearest[v] != Double.POSITIVE_INFINITY
+                            && (nearest[landmark] == Double.POSITIVE_INFINITY
+                                || nearest[v] > nearest[landmark])) {
+                            landmark = v;
+                        }
+                    }
+                }
+                landmarks[i] = landmark;
+                shortestPaths(g, landmark, dist, pred);
+                for (int v = 0; v < n; v++) {
+                    table[v * count + i] = (float) dist[v];
+                    nearest[v] = Math.min(nearest[v], dist[v]);
+                }
+            }
+            return new LandmarkTable(g.fingerprint(), strategy, landmarks, table);
+        }
+
+        // a random vertex with at least one edge, if there is one
+        private static int randomVertex(Graph g, Random rand) {
+            int v = rand.nextInt(g.size);
+            for (int tries = 0; tries < 100 && g.degree(v) == 0; tries++) {
+                v = rand.nextInt(g.size);
+            }
+            return v;
+        }
+
+        // vertex farthest by road from start
+        private static int farthest(Graph g, int start, double[] dist, int[] pred) {
+            shortestPaths(g, start, dist, pred);
+            int best = start;
+            for (int v = 0; v < g.size; v++) {
+                if (dist[v] != Double.POSITIVE_INFINITY && dist[v] > dist[best]) {
+                    best = v;
+                }
+            }
+            return best;
+        }
+
+        /**
+         * Goldberg and Werneck's avoid heuristic: in a shortest path
+         * tree from root, weigh each vertex by how much its distance
+         * exceeds the current landmark bound, sum weights over subtrees,
+         * zeroing subtrees that contain a landmark, then walk from the
+         * root to a leaf through the heaviest children.
+         */
+        private static int avoid(Graph g, int[] landmarks, int chosen, float[] table, int count,
+                                 int root, double[] dist, int[] pred) {
+            int n = g.size;
+            shortestPaths(g, root, dist, pred);
+            double[] size = new double[n];
+            int[] order = new int[n];
+            int reached = 0;
+            for (int v = 0; v < n; v++) {
+                if (dist[v] != Double.POSITIVE_INFINITY) {
+                    order[reached++] = v;
+                }
+            }
+            // deepest first, so children are summed before parents
+            Integer[] byDist = new Integer[reached];
+            for (int i = 0; i < reached; i++) {
+                byDist[i] = order[i];
+            }
+            Arrays.sort(byDist, (a, b) -> Double.compare(dist[b], dist[a]));
+            boolean[] hasLandmark = new boolean[n];
+            for (int i = 0; i < chosen; i++) {
+                hasLandmark[landmarks[i]] = true;
+            }
+            for (int v : byDist) {
+                double bound = 0;
+                for (int i = 0; i < chosen; i++) {
+                    float a = table[root * count + i];
+                    float b = table[v * count + i];
+                    if (a != Float.POSITIVE_INFINITY && b != Float.POSITIVE_INFINITY) {
+                        bound = Math.max(bound, Math.abs(a - b));
+                    }
+                }
+                size[v] += dist[v] - bound;
+                if (hasLandmark[v]) {
+                    size[v] = 0;
+                }
+                if (pred[v] >= 0) {
+                    if (hasLandmark[v]) {
+                        hasLandmark[pred[v]] = true;
+                    }
+                    size[pred[v]] += size[v];
+                }
+            }
+            int current = root;
+            while (true) {
+                int next = -1;
+                for (int e = g.offsets[current]; e < g.offsets[current + 1]; e++) {
+                    int child = g.targets[e];
+                    if (pred[child] == current && (next < 0 || size[child] > size[next])) {
+                        next = child;
+                    }
+                }
+                if (next < 0 || size[next] <= 0) {
+                    return current;
+                }
+                current = next;
+            }
+        }
+
+        void save(String filename) throws IOException {
+            try (FileOutputStream out = new FileOutputStream(filename);
+                 SnapshotWriter writer = new SnapshotWriter(out.getChannel(), MAGIC, VERSION)) {
+                writer.putLong(fingerprint);
+                writer.putInt(dist.length / Math.max(1, count));
+                writer.putInt(count);
+                writer.putInt(strategy.ordinal());
+                writer.putInts(landmarks);
+                writer.putFloats(dist);
+            }
+        }
+
+        static LandmarkTable load(FileChannel channel, Graph g) throws IOException {
+            try (SnapshotReader in = new SnapshotReader(channel, MAGIC, VERSION)) {
+                long fingerprint = in.nextLong();
+                int n = in.nextInt();
+                int count = in.nextInt();
+                int strategy = in.nextInt();
+                if (fingerprint != g.fingerprint() || n != g.size) {
+                    throw new IOException("landmarks were built for a different graph");
+                }
+                if (strategy < 0 || strategy >= LandmarkStrategy.values().length) {
+                    throw new IOException("unknown landmark strategy " + strategy);
+                }
+                int[] landmarks = in.nextInts(count);
+                float[] dist = in.nextFloats(n * count);
+                return new LandmarkTable(fingerprint, LandmarkStrategy.values()[strategy],
+                                         landmarks, dist);
+            }
+        }
+    }
+
+    /**
+     * k-d tree over the vertices that have edges, for nearest vertex
+     * queries by Point.distance. Each node covers a range of the
+     * vertex ids in myOrder, split at the median of its wider side,
+     * with small ranges left as leaves that are scanned. A node's box
+     * gives a lower bound on Point.distance to anything inside it, so
+     * whole subtrees farther than the best found so far are skipped.
+     */
+    static final class KdTree {
+        private static final int LEAF_SIZE = 8;
+        // bounds are shaved so rounding can't prune an equally close vertex
+        private static final double BOUND_SLACK = 1 - 1e-9;
+
+        private final int[] myOrder;     // vertex ids, grouped by node
+        private final double[] myLat;    // coordinates in myOrder order
+        private final double[] myLon;
+        private final int[] myLow;       // node range in myOrder
+        private final int[] myHigh;
+        private final int[] myRight;     // right child, -1 for a leaf; left is node + 1
+        private final double[] myMinLat;
+        private final double[] myMaxLat;
+        private final double[] myMinLon;
+        private final double[] myMaxLon;
+        private int myNodes;
+
+        KdTree(Graph g) {
+            int count = 0;
+            for (int v = 0; v < g.size; v++) {
+                if (g.degree(v) > 0) {
+                    count++;
+                }
+            }
+            myOrder = new int[count];
+            count = 0;
+            for (int v = 0; v < g.size; v++) {
+                if (g.degree(v) > 0) {
+                    myOrder[count++] = v;
+                }
+            }
+            // every leaf holds more than LEAF_SIZE / 2 vertices
+            int capacity = 2 * (count / (LEAF_SIZE / 2) + 1);
+            myLow = new int[capacity];
+            myHigh = new int[capacity];
+            myRight = new int[capacity];
+            myMinLat = new double[capacity];
+            myMaxLat = new double[capacity];
+            myMinLon = new double[capacity];
+            myMaxLon = new double[capacity];
+            myLat = new double[count];
+            myLon = new double[count];
+            if (count > 0) {
+                build(g, 0, count);
+            }
+            for (int i = 0; i < count; i++) {
+                myLat[i] = g.lat[myOrder[i]];
+                myLon[i] = g.lon[myOrder[i]];
+            }
+        }
+
+        // creates the node for myOrder[low, high) and its subtree
+        private int build(Graph g, int low, int high) {
+            int node = myNodes++;
+            myLow[node] = low;
+            myHigh[node] = high;
+            double minLat = Double.POSITIVE_INFINITY;
+            double maxLat = Double.NEGATIVE_INFINITY;
+            double minLon = Double.POSITIVE_INFINITY;
+            double maxLon = Double.NEGATIVE_INFINITY;
+            for (int i = low; i < high; i++) {
+                int v = myOrder[i];
+                minLat = Math.min(minLat, g.lat[v]);
+                maxLat = Math.max(maxLat, g.lat[v]);
+                minLon = Math.min(minLon, g.lon[v]);
+                maxLon = Math.max(maxLon, g.lon[v]);
+            }
+            myMinLat[node] = minLat;
+            myMaxLat[node] = maxLat;
+            myMinLon[node] = minLon;
+            myMaxLon[node] = maxLon;
+            myRight[node] = -1;
+            if (high - low > LEAF_SIZE) {
+                double lonScale = Math.cos(Math.toRadians((minLat + maxLat) / 2));
+                double[] key = (maxLon - minLon) * lonScale > maxLat - minLat ? g.lon : g.lat;
+                int mid = (low + high) >>> 1;
+                select(key, low, high - 1, mid);
+                build(g, low, mid);
+                myRight[node] = build(g, mid, high);
+            }
+            return node;
+        }
+
+        // quickselect: puts the vertex with the k-th smallest key at k
+        private void select(double[] key, int low, int high, int k) {
+            while (low < high) {
+                double pivot = key[myOrder[(low + high) >>> 1]];
+                int i = low;
+                int j = high;
+                while (i <= j) {
+                    while (key[myOrder[i]] < pivot) {
+                        i++;
+                    }
+                    while (key[myOrder[j]] > pivot) {
+                        j--;
+                    }
+                    if (i <= j) {
+                        int t = myOrder[i];
+                        myOrder[i++] = myOrder[j];
+                        myOrder[j--] = t;
+                    }
+                }
+                if (k <= j) {
+                    high = j;
+                }
+                else if (k >= i) {
+                    low = i;
+                }
+                else {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return the vertex closest to (lat, lon) by Point.distance, or
+         * -1 if the tree is empty
+         */
+        int nearest(double lat, double lon) {
+            Neighbors found = new Neighbors();
+            search(lat, lon, 1, Double.POSITIVE_INFINITY, found);
+            return found.size() == 0 ? -1 : found.id(0);
+        }
+
+        /**
+         * Fills found with the at most k vertices within radius miles of
+         * (lat, lon), closest first. Nothing is allocated unless found
+         * needs to grow.
+         */
+        void search(double lat, double lon, int k, double radius, Neighbors found) {
+            found.reset(k, radius);
+            if (myOrder.length > 0 && k > 0) {
+                search(0, lat, lon, found);
+            }
+            found.sort();
+        }
+
+        private void search(int node, double lat, double lon, Neighbors found) {
+            int right = myRight[node];
+            if (right < 0) {
+                for (int i = myLow[node]; i < myHigh[node]; i++) {
+                    found.offer(myOrder[i], distance(lat, lon, myLat[i], myLon[i]));
+                }
+                return;
+            }
+            int left = node + 1;
+            double leftBound = lowerBound(left, lat, lon);
+            double rightBound = lowerBound(right, lat, lon);
+            int first = leftBound <= rightBound ? left : right;
+            int second = first == left ? right : left;
+            if (found.accepts(Math.min(leftBound, rightBound))) {
+                search(first, lat, lon, found);
+            }
+            if (found.accepts(Math.max(leftBound, rightBound))) {
+                search(second, lat, lon, found);
+            }
+        }
+
+        /**
+         * @return a lower bound on Point.distance from (lat, lon) to any
+         * point in node's box: the latitude and longitude gaps to the
+         * box, with the longitude gap scaled by the smallest cosine of a
+         * mean latitude between the query and the box
+         */
+        double lowerBound(int node, double lat, double lon) {
+            double minLat = myMinLat[node];
+            double maxLat = myMaxLat[node];
+            double dLat = lat < minLat ? minLat - lat : lat > maxLat ? lat - maxLat : 0;
+            double minLon = myMinLon[node];
+            double maxLon = myMaxLon[node];
+            double dLon = lon < minLon ? minLon - lon : lon > maxLon ? lon - maxLon : 0;
+            if (dLon > 0) {
+                double cos = Math.min(Math.cos(Math.toRadians((lat + minLat) / 2)),
+                                      Math.cos(Math.toRadians((lat + maxLat) / 2)));
+                dLon *= Math.max(cos, 0);
+            }
+            double x = Math.toRadians(dLon);
+            double y = Math.toRadians(dLat);
+            return EARTH_RADIUS * Math.sqrt(x * x + y * y) * BOUND_SLACK;
+        }
+    }
+
+    /**
+     * Result buffer for k-d tree searches: vertex ids with their
+     * distances, kept as a max-heap on distance while searching so the
+     * farthest of the k best can be replaced, then sorted closest
+     * first. A caller answering many queries can reuse one buffer.
+     */
+    static final class Neighbors {
+        private int[] myIds = new int[8];
+        private double[] myDists = new double[8];
+        private int mySize;
+        private int myLimit;
+        private double myRadius;
+
+        void reset(int limit, double radius) {
+            mySize = 0;
+            myLimit = limit;
+            myRadius = radius;
+        }
+
+        int size() {
+            return mySize;
+        }
+
+        int id(int i) {
+            return myIds[i];
+        }
+
+        double distance(int i) {
+            return myDists[i];
+        }
+
+        /**
+         * @return whether something at distance d could still be kept
+         */
+        boolean accepts(double d) {
+            return mySize < myLimit ? d <= myRadius : d < myDists[0];
+        }
+
+        void offer(int id, double d) {
+            if (!accepts(d)) {
+                return;
+            }
+            if (mySize < myLimit) {
+                if (mySize == myIds.length) {
+                    myIds = Arrays.copyOf(myIds, 2 * mySize);
+                    myDists = Arrays.copyOf(myDists, 2 * mySize);
+                }
+                int slot = mySize++;
+                while (slot > 0 && myDists[(slot - 1) >>> 1] < d) {
+                    int parent = (slot - 1) >>> 1;
+                    myIds[slot] = myIds[parent];
+                    myDists[slot] = myDists[parent];
+                    slot = parent;
+                }
+                myIds[slot] = id;
+                myDists[slot] = d;
+            }
+            else {
+                siftDown(0, id, d, mySize);
+            }
+        }
+
+        // heap sort, leaving ids in order of increasing distance
+        void sort() {
+            for (int end = mySize - 1; end > 0; end--) {
+                int id = myIds[end];
+                double d = myDists[end];
+                myIds[end] = myIds[0];
+                myDists[end] = myDists[0];
+                siftDown(0, id, d, end);
+            }
+        }
+
+        private void siftDown(int slot, int id, double d, int size) {
+            while (2 * slot + 1 < size) {
+                int child = 2 * slot + 1;
+                if (child + 1 < size && myDists[child + 1] > myDists[child]) {
+                    child++;
+                }
+                if (myDists[child] <= d) {
+                    break;
+                }
+                myIds[slot] = myIds[child];
+                myDists[slot] = myDists[child];
+                slot = child;
+            }
+            myIds[slot] = id;
+            myDists[slot] = d;
+        }
+
+        List<Point> points(Graph g) {
+            List<Point> points = new ArrayList<>(mySize);
+            for (int i = 0; i < mySize; i++) {
+                points.add(g.point(myIds[i]));
+            }
+            return points;
+        }
+    }
+
+    /**
+     * Linear scan for the nearest vertex over struct-of-arrays copies of
+     * the coordinates of the vertices with edges, for graphs too small
+     * or too short-lived to be worth a k-d tree. A first pass finds the
+     * vertex with the smallest lower bound on Point.distance, using the
+     * average of the two latitudes' cosines, which never exceeds the
+     * cosine of their mean that Point.distance uses. Its exact distance
+     * then limits a second pass, which computes exact distances only
+     * for the few vertices whose bound is within it. Both passes are
+     * plain arithmetic over arrays; VectorNearestScan overrides them
+     * with Vector API lanes.
+     */
+    static class NearestScan {
+        // degrees to miles along a meridian, as in Point.distance
+        static final double MILES_PER_DEGREE = EARTH_RADIUS * Math.PI / 180;
+        // bounds are loosened so rounding can't prune an equally close vertex
+        static final double BOUND_SLACK = 1 + 1e-9;
+
+        final int[] ids;
+        final double[] lat;
+        final double[] lon;
+        final double[] cos; // cosine of each latitude
+
+        NearestScan(Graph g) {
+            int count = 0;
+            for (int v = 0; v < g.size; v++) {
+                if (g.degree(v) > 0) {
+                    count++;
+                }
+            }
+            ids = new int[count];
+            lat = new double[count];
+            lon = new double[count];
+            cos = new double[count];
+            count = 0;
+            for (int v = 0; v < g.size; v++) {
+                if (g.degree(v) > 0) {
+                    ids[count] = v;
+                    lat[count] = g.lat[v];
+                    lon[count] = g.lon[v];
+                    cos[count] = Math.cos(Math.toRadians(g.lat[v]));
+                    count++;
+                }
+            }
+        }
+
+        /**
+         * @return the vertex closest to (lat, lon) by Point.distance, or
+         * -1 if no vertex has edges
+         */
+        final int nearest(double qLat, double qLon) {
+            if (ids.length == 0) {
+                return -1;
+            }
+            double qCos = Math.cos(Math.toRadians(qLat));
+            int best = lowestBound(qLat, qLon, qCos);
+            double degrees = distance(qLat, qLon, lat[best], lon[best]) / MILES_PER_DEGREE;
+            double limit = degrees * degrees * BOUND_SLACK;
+            return ids[closestWithin(qLat, qLon, qCos, limit, best)];
+        }
+
+        /**
+         * @return index of the vertex with the smallest squared bound, in
+         * degrees, on its distance from the query
+         */
+        int lowestBound(double qLat, double qLon, double qCos) {
+            int best = 0;
+            double bestBound = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < lat.length; i++) {
+                double dLat = lat[i] - qLat;
+                double dLon = (lon[i] - qLon) * (qCos + cos[i]) * 0.5;
+                double bound = dLat * dLat + dLon * dLon;
+                if (bound < bestBound) {
+                    bestBound = bound;
+                    best = i;
+                }
+            }
+            return best;
+        }
+
+        /**
+         * @return index of the closest vertex by Point.distance among
+         * best and the vertices whose squared bound is at most limit
+         */
+        int closestWithin(double qLat, double qLon, double qCos, double limit, int best) {
+            double bestDistance = distance(qLat, qLon, lat[best], lon[best]);
+            for (int i = 0; i < lat.length; i++) {
+                double dLat = lat[i] - qLat;
+                double dLon = (lon[i] - qLon) * (qCos + cos[i]) * 0.5;
+                if (dLat * dLat + dLon * dLon <= limit) {
+                    double d = distance(qLat, qLon, lat[i], lon[i]);
+                    if (d < bestDistance) {
+                        bestDistance = d;
+                        best = i;
+                    }
+                }
+            }
+            return best;
+        }
+
+        /**
+         * @return a VectorNearestScan if that class was compiled and the
+         * jdk.incubator.vector module is present, otherwise null
+         */
+        static NearestScan vectorized(Graph g) {
+            try {
+                return (NearestScan) Class.forName("VectorNearestScan")
+                                          .getDeclaredConstructor(Graph.class)
+                                          .newInstance(g);
+            }
+            catch (ReflectiveOperationException | LinkageError e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * @return query indices in Z-order over the queries' bounding box,
+     * each in the low 32 bits of a long with its curve position above
+     */
+    static long[] spatialOrder(double[] lat, double[] lon) {
+        double minLat = Double.POSITIVE_INFINITY;
+        double maxLat = Double.NEGATIVE_INFINITY;
+        double minLon = Double.POSITIVE_INFINITY;
+        double maxLon = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < lat.length; i++) {
+            minLat = Math.min(minLat, lat[i]);
+            maxLat = Math.max(maxLat, lat[i]);
+            minLon = Math.min(minLon, lon[i]);
+            maxLon = Math.max(maxLon, lon[i]);
+        }
+        double latScale = maxLat > minLat ? 0xFFFF / (maxLat - minLat) : 0;
+        double lonScale = maxLon > minLon ? 0xFFFF / (maxLon - minLon) : 0;
+        long[] order = new long[lat.length];
+        for (int i = 0; i < lat.length; i++) {
+            int y = spread((int) ((lat[i] - minLat) * latScale));
+            int x = spread((int) ((lon[i] - minLon) * lonScale));
+            order[i] = (Integer.toUnsignedLong(y | x << 1) << 32) | i;
+        }
+        Arrays.parallelSort(order);
+        return order;
+    }
+
+    // spreads the low 16 bits of v out to the even bits
+    private static int spread(int v) {
+        v &= 0xFFFF;
+        v = (v | v << 8) & 0x00FF00FF;
+        v = (v | v << 4) & 0x0F0F0F0F;
+        v = (v | v << 2) & 0x33333333;
+        v = (v | v << 1) & 0x55555555;
+        return v;
+    }
+
+    /**
+     * Resolves the queries at positions [low, high) of a spatial order,
+     * splitting in half until a piece is small enough for one thread.
+     * Each piece reuses one Neighbors buffer, so a query allocates only
+     * its result Point.
+     */
+    static final class NearestBatch extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private static final int CHUNK = 2048;
+
+        private final Graph myGraph;
+        private final KdTree myTree;
+        private final double[] myLat;
+        private final double[] myLon;
+        private final long[] myOrder;
+        private final int[] myVertices;
+        private final Point[] myPoints;
+        private final int myLow;
+        private final int myHigh;
+
+        NearestBatch(Graph g, KdTree tree, double[] lat, double[] lon, long[] order,
+                     int[] vertices, Point[] points, int low, int high) {
+            myGraph = g;
+            myTree = tree;
+            myLat = lat;
+            myLon = lon;
+            myOrder = order;
+            myVertices = vertices;
+            myPoints = points;
+            myLow = low;
+            myHigh = high;
+        }
+
+        @Override
+        protected void compute() {
+            if (myHigh - myLow > CHUNK) {
+                int mid = (myLow + myHigh) >>> 1;
+                invokeAll(new NearestBatch(myGraph, myTree, myLat, myLon, myOrder,
+                                           myVertices, myPoints, myLow, mid),
+                          new NearestBatch(myGraph, myTree, myLat, myLon, myOrder,
+                                           myVertices, myPoints, mid, myHigh));
+                return;
+            }
+            Neighbors found = new Neighbors();
+            for (int i = myLow; i < myHigh; i++) {
+                int q = (int) myOrder[i];
+                int v = -1;
+                if (Double.isFinite(myLat[q]) && Double.isFinite(myLon[q])) {
+                    myTree.search(myLat[q], myLon[q], 1, Double.POSITIVE_INFINITY, found);
+                    v = found.size() == 0 ? -1 : found.id(0);
+                }
+                myVertices[q] = v;
+                if (myPoints != null) {
+                    myPoints[q] = v < 0 ? new Point(myLat[q], myLon[q]) : myGraph.point(v);
+                }
+            }
+        }
+    }
+
+    /**
+     * Parallel single-source shortest paths by delta-stepping (Meyer and
+     * Sanders). Distances are doubles kept as their bits in a long[] and
+     * lowered with compare-and-set; for distances that are not negative
+     * the bits order as the values do. Bucket i holds vertices whose
+     * distance may lie in [i * delta, (i + 1) * delta), and may hold stale
+     * or repeated entries, which are skipped when it is emptied. Each
+     * step relaxes a frontier in chunks as ForkJoin tasks, every chunk
+     * collecting the vertices it improved, which are then put in their
+     * buckets on one thread. Distances are the least fixed point of
+     * dist(v) = min(dist(u) + w(u, v)) in double arithmetic, as Dijkstra's
+     * are, so the two agree exactly.
+     */
+    static final class DeltaStepping {
+        private static final int CHUNK = 256;
+        private static final long INFINITY_BITS = Double.doubleToRawLongBits(Double.POSITIVE_INFINITY);
+        private static final VarHandle DIST = MethodHandles.arrayElementVarHandle(long[].class);
+
+        private final Graph myGraph;
+        private final double myDelta;
+        private final long[] myDist;
+        private final int[] myQueued;     // latest step each vertex was in the frontier
+        private final int[] mySettled;    // latest round each vertex was taken in
+        // only buckets holding vertices, so a tiny delta costs no empty ones
+        private final TreeMap<Long, IntList> myBuckets = new TreeMap<>();
+
+        DeltaStepping(Graph g, double delta) {
+            myGraph = g;
+            myDelta = delta;
+            myDist = new long[g.size];
+            myQueued = new int[g.size];
+            mySettled = new int[g.size];
+        }
+
+        /**
+         * @return distance from source to every vertex
+         */
+        double[] run(int source) {
+            Arrays.fill(myDist, INFINITY_BITS);
+            myDist[source] = 0L;
+            bucket(0).add(source);
+            IntList frontier = new IntList();
+            IntList taken = new IntList();
+            int step = 0;
+            int round = 0;
+            while (!myBuckets.isEmpty()) {
+                Map.Entry<Long, IntList> first = myBuckets.firstEntry();
+                long i = first.getKey();
+                IntList bucket = first.getValue();
+                round++;
+                taken.clear();
+                while (bucket.size() > 0) {
+                    step++;
+                    frontier.clear();
+                    for (int k = 0; k < bucket.size(); k++) {
+                        int v = bucket.get(k);
+                        if (myQueued[v] != step && bucketOf(v) == i) {
+                            myQueued[v] = step;
+                            frontier.add(v);
+                            if (mySettled[v] != round) {
+                                mySettled[v] = round;
+                                taken.add(v);
+                            }
+                        }
+                    }
+                    bucket.clear();
+                    relax(frontier, true);
+                }
+                relax(taken, false);
+                // a long road rounded into this bucket refills it for another round
+                if (bucket.size() == 0) {
+                    myBuckets.remove(i);
+                }
+            }
+            double[] dist = new double[myDist.length];
+            for (int v = 0; v < dist.length; v++) {
+                dist[v] = Double.longBitsToDouble(myDist[v]);
+            }
+            return dist;
+        }
+
+        private IntList bucket(long i) {
+            return myBuckets.computeIfAbsent(i, k -> new IntList());
+        }
+
+        // saturates at Long.MAX_VALUE for a tiny delta, which only shares a bucket
+        private long bucketOf(int v) {
+            return (long) (Double.longBitsToDouble(myDist[v]) / myDelta);
+        }
+
+        /**
+         * Relaxes the light (no longer than delta) or heavy edges of
+         * vertices in parallel and buckets every vertex they improved.
+         */
+        private void relax(IntList vertices, boolean light) {
+            int chunks = (vertices.size() + CHUNK - 1) / CHUNK;
+            IntList[] improved = new IntList[chunks];
+            new Relax(this, vertices, light, improved, 0, chunks).invoke();
+            for (IntList list : improved) {
+                for (int k = 0; k < list.size(); k++) {
+                    int v = list.get(k);
+                    bucket(bucketOf(v)).add(v);
+                }
+            }
+        }
+
+        /**
+         * Lowers the distance of v to d if d is smaller.
+         * @return true if it was lowered
+         */
+        private boolean lower(int v, double d) {
+            long bits = Double.doubleToRawLongBits(d);
+            long current = (long) DIST.getOpaque(myDist, v);
+            while (bits < current) {
+                if (DIST.compareAndSet(myDist, v, current, bits)) {
+                    return true;
+                }
+                current = (long) DIST.getVolatile(myDist, v);
+            }
+            return false;
+        }
+
+        private static final class Relax extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+            private final DeltaStepping mySearch;
+            private final IntList myVertices;
+            private final boolean myLight;
+            private final IntList[] myImproved;
+            private final int myLow;      // chunks [low, high)
+            private final int myHigh;
+
+            Relax(DeltaStepping search, IntList vertices, boolean light, IntList[] improved, int low, int high) {
+                mySearch = search;
+                myVertices = vertices;
+                myLight = light;
+                myImproved = improved;
+                myLow = low;
+                myHigh = high;
+            }
+
+            @Override
+            protected void compute() {
+                if (myHigh - myLow > 1) {
+                    int mid = (myLow + myHigh) >>> 1;
+                    invokeAll(new Relax(mySearch, myVertices, myLight, myImproved, myLow, mid),
+                              new Relax(mySearch, myVertices, myLight, myImproved, mid, myHigh));
+                    return;
+                }
+                Graph g = mySearch.myGraph;
+                double delta = mySearch.myDelta;
+                IntList improved = new IntList();
+                int end = Math.min(myVertices.size(), myHigh * CHUNK);
+                for (int k = myLow * CHUNK; k < end; k++) {
+                    int u = myVertices.get(k);
+                    double du = Double.longBitsToDouble((long) DIST.getOpaque(mySearch.myDist, u));
+                    for (int e = g.offsets[u]; e < g.offsets[u + 1]; e++) {
+                        double w = g.weight(u, e);
+                        if ((w <= delta) == myLight && mySearch.lower(g.targets[e], du + w)) {
+                            improved.add(g.targets[e]);
+                        }
+                    }
+                }
+                if (myLow < myHigh) {
+                    myImproved[myLow] = improved;
+                }
+            }
+        }
+    }
+
+    /**
+     * Fills rows [low, high) of a distance matrix with one search each,
+     * splitting in half down to single rows so that idle threads can
+     * steal them; rows differ widely in cost, and each thread searches
+     * with its own reused workspace.
+     */
+    static final class MatrixRows extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final FrozenGraph myGraph;
+        private final int[] myRows;
+        private final int[] myColumns;
+        private final int[] myDistinct;
+        private final double[][] myMatrix;
+        private final int myLow;
+        private final int myHigh;
+
+        MatrixRows(FrozenGraph graph, int[] rows, int[] columns, int[] distinct,
+                   double[][] matrix, int low, int high) {
+            myGraph = graph;
+            myRows = rows;
+            myColumns = columns;
+            myDistinct = distinct;
+            myMatrix = matrix;
+            myLow = low;
+            myHigh = high;
+        }
+
+        @Override
+        protected void compute() {
+            if (myHigh - myLow > 1) {
+                int mid = (myLow + myHigh) >>> 1;
+                invokeAll(new MatrixRows(myGraph, myRows, myColumns, myDistinct, myMatrix, myLow, mid),
+                          new MatrixRows(myGraph, myRows, myColumns, myDistinct, myMatrix, mid, myHigh));
+                return;
+            }
+            for (int i = myLow; i < myHigh; i++) {
+                myGraph.oneToMany(myRows[i], myColumns, myDistinct, myMatrix[i]);
+            }
+        }
+    }
+
+    /**
+     * Searches legs [low, high) of a multi-stop route, one task per leg
+     * so that idle threads can steal long ones, each thread with its own
+     * workspace.
+     */
+    static final class Legs extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final FrozenGraph myGraph;
+        private final int[] myStops;
+        private final SearchMode myMode;
+        private final int[][] myLegs;
+        private final int myLow;
+        private final int myHigh;
+
+        Legs(FrozenGraph graph, int[] stops, SearchMode mode, int[][] legs, int low, int high) {
+            myGraph = graph;
+            myStops = stops;
+            myMode = mode;
+            myLegs = legs;
+            myLow = low;
+            myHigh = high;
+        }
+
+        @Override
+        protected void compute() {
+            if (myHigh - myLow > 1) {
+                int mid = (myLow + myHigh) >>> 1;
+                invokeAll(new Legs(myGraph, myStops, myMode, myLegs, myLow, mid),
+                          new Legs(myGraph, myStops, myMode, myLegs, mid, myHigh));
+                return;
+            }
+            for (int i = myLow; i < myHigh; i++) {
+                myLegs[i] = myGraph.leg(myStops[i], myStops[i + 1], myMode);
+            }
+        }
+    }
+
+    /**
+     * A point part way along an edge: fraction t of the way from vertex
+     * from to vertex to, at (lat, lon). A vertex is one with from == to.
+     */
+    static final class EdgeSnap {
+        final int from;
+        final int to;
+        final double t;
+        final double lat;
+        final double lon;
+
+        EdgeSnap(int vertex) {
+            this(vertex, vertex, 0, Double.NaN, Double.NaN);
+        }
+
+        EdgeSnap(int from, int to, double t, double lat, double lon) {
+            this.from = from;
+            this.to = to;
+            this.t = t;
+            this.lat = lat;
+            this.lon = lon;
+        }
+
+        boolean isVertex() {
+            return from == to;
+        }
+
+        boolean sameEdge(EdgeSnap other) {
+            return from == other.from && to == other.to || from == other.to && to == other.from;
+        }
+    }
+
+    /**
+     * Builds a graph's EdgeTree the first time any thread needs it, as
+     * tree() does the k-d tree, so loading a graph costs nothing for
+     * edge snapping until a point is snapped or routed from mid-edge.
+     * Shared by a GraphProcessor and every FrozenGraph of the same graph.
+     */
+    static final class LazyEdgeTree {
+        private final Graph myGraph;
+        private volatile EdgeTree myTree;
+
+        LazyEdgeTree(Graph g) {
+            myGraph = g;
+        }
+
+        EdgeTree get() {
+            EdgeTree tree = myTree;
+            if (tree == null) {
+                synchronized (this) {
+                    tree = myTree;
+                    if (tree == null) {
+                        tree = new EdgeTree(myGraph);
+                        myTree = tree;
+                    }
+                }
+            }
+            return tree;
+        }
+    }
+
+    private static boolean isFinite(Point p) {
+        return Double.isFinite(p.getLat()) && Double.isFinite(p.getLon());
+    }
+
+    /**
+     * R-tree over the graph's edges, each undirected edge once, packed
+     * bottom-up by Sort-Tile-Recursive: entries are sorted by longitude
+     * into vertical slices, each slice by latitude, and cut into nodes
+     * of FANOUT, so nodes are full and barely overlap. Segments are
+     * measured in a plane around the query point with longitude scaled
+     * by the cosine of its latitude, as Point.distance does, and the
+     * node boxes give exact lower bounds in that plane.
+     */
+    static final class EdgeTree {
+        private static final int FANOUT = 16;
+        // a located point this close to its edge, in miles, is on it
+        private static final double ON_EDGE = 1e-6;
+
+        private final int[] myFrom;      // edge endpoints, grouped by leaf
+        private final int[] myTo;
+        private final double[] myLat1;   // endpoint coordinates in the same order
+        private final double[] myLon1;
+        private final double[] myLat2;
+        private final double[] myLon2;
+        private final int[] myLow;       // children: entries of a leaf, else nodes
+        private final int[] myHigh;
+        private final double[] myMinLat;
+        private final double[] myMaxLat;
+        private final double[] myMinLon;
+        private final double[] myMaxLon;
+        private final int myLeaves;      // nodes below this are leaves
+        private final int myRoot;
+
+        EdgeTree(Graph g) {
+            int count = 0;
+            for (int u = 0; u < g.size; u++) {
+                for (int e = g.offsets[u]; e < g.offsets[u + 1]; e++) {
+                    if (u < g.targets[e]) {
+                        count++;
+                    }
+                }
+            }
+            int[] from = new int[count];
+            int[] to = new int[count];
+            double[] centerLat = new double[count];
+            double[] centerLon = new double[count];
+            count = 0;
+            for (int u = 0; u < g.size; u++) {
+                for (int e = g.offsets[u]; e < g.offsets[u + 1]; e++) {
+                    int v = g.targets[e];
+                    if (u < v) {
+                        from[count] = u;
+                        to[count] = v;
+                        centerLat[count] = (g.lat[u] + g.lat[v]) / 2;
+                        centerLon[count] = (g.lon[u] + g.lon[v]) / 2;
+                        count++;
+                    }
+                }
+            }
+            int[] order = tile(centerLat, centerLon, count);
+            myFrom = new int[count];
+            myTo = new int[count];
+            myLat1 = new double[count];
+            myLon1 = new double[count];
+            myLat2 = new double[count];
+            myLon2 = new double[count];
+            for (int i = 0; i < count; i++) {
+                int u = from[order[i]];
+                int v = to[order[i]];
+                myFrom[i] = u;
+                myTo[i] = v;
+                myLat1[i] = g.lat[u];
+                myLon1[i] = g.lon[u];
+                myLat2[i] = g.lat[v];
+                myLon2[i] = g.lon[v];
+            }
+
+            int nodes = 0;
+            int level = count;
+            do {
+                level = (level + FANOUT - 1) / FANOUT;
+                nodes += level;
+            } while (level > 1);
+            myLow = new int[nodes];
+            myHigh = new int[nodes];
+            myMinLat = new double[nodes];
+            myMaxLat = new double[nodes];
+            myMinLon = new double[nodes];
+            myMaxLon = new double[nodes];
+
+            // leaves over consecutive entries, already tiled
+            int made = 0;
+            for (int i = 0; i < count; i += FANOUT) {
+                int high = Math.min(count, i + FANOUT);
+                myLow[made] = i;
+                myHigh[made] = high;
+                myMinLat[made] = Double.POSITIVE_INFINITY;
+                myMaxLat[made] = Double.NEGATIVE_INFINITY;
+                myMinLon[made] = Double.POSITIVE_INFINITY;
+                myMaxLon[made] = Double.NEGATIVE_INFINITY;
+                for (int j = i; j < high; j++) {
+                    myMinLat[made] = Math.min(myMinLat[made], Math.min(myLat1[j], myLat2[j]));
+                    myMaxLat[made] = Math.max(myMaxLat[made], Math.max(myLat1[j], myLat2[j]));
+                    myMinLon[made] = Math.min(myMinLon[made], Math.min(myLon1[j], myLon2[j]));
+                    myMaxLon[made] = Math.max(myMaxLon[made], Math.max(myLon1[j], myLon2[j]));
+                }
+                made++;
+            }
+            myLeaves = made;
+
+            // each upper level tiles the level below, then groups it
+            int levelStart = 0;
+            while (made - levelStart > 1) {
+                int levelEnd = made;
+                int size = levelEnd - levelStart;
+                double[] lat = new double[size];
+                double[] lon = new double[size];
+                for (int i = 0; i < size; i++) {
+                    lat[i] = (myMinLat[levelStart + i] + myMaxLat[levelStart + i]) / 2;
+                    lon[i] = (myMinLon[levelStart + i] + myMaxLon[levelStart + i]) / 2;
+                }
+                permute(levelStart, tile(lat, lon, size));
+                for (int i = levelStart; i < levelEnd; i += FANOUT) {
+                    int high = Math.min(levelEnd, i + FANOUT);
+                    myLow[made] = i;
+                    myHigh[made] = high;
+                    myMinLat[made] = Double.POSITIVE_INFINITY;
+                    myMaxLat[made] = Double.NEGATIVE_INFINITY;
+                    myMinLon[made] = Double.POSITIVE_INFINITY;
+                    myMaxLon[made] = Double.NEGATIVE_INFINITY;
+                    for (int j = i; j < high; j++) {
+                        myMinLat[made] = Math.min(myMinLat[made], myMinLat[j]);
+                        myMaxLat[made] = Math.max(myMaxLat[made], myMaxLat[j]);
+                        myMinLon[made] = Math.min(myMinLon[made], myMinLon[j]);
+                        myMaxLon[made] = Math.max(myMaxLon[made], myMaxLon[j]);
+                    }
+                    made++;
+                }
+                levelStart = levelEnd;
+            }
+            myRoot = made - 1;
+        }
+
+        /**
+         * @return the Sort-Tile-Recursive order of count entries with
+         * the given centers
+         */
+        private static int[] tile(double[] lat, double[] lon, int count) {
+            int[] order = new int[count];
+            for (int i = 0; i < count; i++) {
+                order[i] = i;
+            }
+            sort(order, lon, 0, count - 1);
+            int pages = (count + FANOUT - 1) / FANOUT;
+            int slices = (int) Math.ceil(Math.sqrt(pages));
+            int sliceSize = slices == 0 ? 1 : (pages + slices - 1) / slices * FANOUT;
+            for (int i = 0; i < count; i += sliceSize) {
+                sort(order, lat, i, Math.min(count, i + sliceSize) - 1);
+            }
+            return order;
+        }
+
+        // quicksort of order[low..high] by key
+        private static void sort(int[] order, double[] key, int low, int high) {
+            while (low < high) {
+                double pivot = key[order[(low + high) >>> 1]];
+                int i = low;
+                int j = high;
+                while (i <= j) {
+                    while (key[order[i]] < pivot) {
+                        i++;
+                    }
+                    while (key[order[j]] > pivot) {
+                        j--;
+                    }
+                    if (i <= j) {
+                        int t = order[i];
+                        order[i++] = order[j];
+                        order[j--] = t;
+                    }
+                }
+                if (j - low < high - i) {
+                    sort(order, key, low, j);
+                    low = i;
+                }
+                else {
+                    sort(order, key, i, high);
+                    high = j;
+                }
+            }
+        }
+
+        // reorders the nodes from start on as given by order
+        private void permute(int start, int[] order) {
+            int[] low = myLow.clone();
+            int[] high = myHigh.clone();
+            double[] minLat = myMinLat.clone();
+            double[] maxLat = myMaxLat.clone();
+            double[] minLon = myMinLon.clone();
+            double[] maxLon = myMaxLon.clone();
+            for (int i = 0; i < order.length; i++) {
+                int from = start + order[i];
+                myLow[start + i] = low[from];
+                myHigh[start + i] = high[from];
+                myMinLat[start + i] = minLat[from];
+                myMaxLat[start + i] = maxLat[from];
+                myMinLon[start + i] = minLon[from];
+                myMaxLon[start + i] = maxLon[from];
+            }
+        }
+
+        /**
+         * @return the closest point to (lat, lon) on any edge, or null
+         * if there are no edges
+         */
+        EdgeSnap nearest(double lat, double lon) {
+            if (myFrom.length == 0) {
+                return null;
+            }
+            Query q = new Query(lat, lon);
+            search(myRoot, q);
+            int i = q.best;
+            if (i < 0) {
+                return null;
+            }
+            double t = q.bestT;
+            double snapLat = t == 1 ? myLat2[i] : myLat1[i] + t * (myLat2[i] - myLat1[i]);
+            double snapLon = t == 1 ? myLon2[i] : myLon1[i] + t * (myLon2[i] - myLon1[i]);
+            return new EdgeSnap(myFrom[i], myTo[i], t, snapLat, snapLon);
+        }
+
+        /**
+         * @return the edge point at (lat, lon), such as one returned by
+         * nearest, or null if (lat, lon) is on no edge
+         */
+        EdgeSnap locate(double lat, double lon) {
+            EdgeSnap snap = nearest(lat, lon);
+            if (snap == null || distance(lat, lon, snap.lat, snap.lon) > ON_EDGE) {
+                return null;
+            }
+            return snap;
+        }
+
+        private static final class Query {
+            final double lat;
+            final double lon;
+            final double scale;  // plane units per degree of longitude
+            int best = -1;
+            double bestT;
+            double bestSquared = Double.POSITIVE_INFINITY;
+
+            Query(double lat, double lon) {
+                this.lat = lat;
+                this.lon = lon;
+                scale = Math.cos(Math.toRadians(lat));
+            }
+        }
+
+        private void search(int node, Query q) {
+            if (node < myLeaves) {
+                for (int i = myLow[node]; i < myHigh[node]; i++) {
+                    double ax = (myLon1[i] - q.lon) * q.scale;
+                    double ay = myLat1[i] - q.lat;
+                    double dx = (myLon2[i] - myLon1[i]) * q.scale;
+                    double dy = myLat2[i] - myLat1[i];
+                    double length = dx * dx + dy * dy;
+                    double t = length > 0 ? -(ax * dx + ay * dy) / length : 0;
+                    t = t < 0 ? 0 : t > 1 ? 1 : t;
+                    double px = ax + t * dx;
+                    double py = ay + t * dy;
+                    double squared = px * px + py * py;
+                    if (squared < q.bestSquared) {
+                        q.bestSquared = squared;
+                        q.best = i;
+                        q.bestT = t;
+                    }
+                }
+                return;
+            }
+            // the closest box first, so the rest are mostly pruned
+            int first = myLow[node];
+            double firstBound = lowerBound(first, q);
+            for (int child = first + 1; child < myHigh[node]; child++) {
+                double bound = lowerBound(child, q);
+                if (bound < firstBound) {
+                    first = child;
+                    firstBound = bound;
+                }
+            }
+            if (firstBound < q.bestSquared) {
+                search(first, q);
+            }
+            for (int child = myLow[node]; child < myHigh[node]; child++) {
+                if (child != first && lowerBound(child, q) < q.bestSquared) {
+                    search(child, q);
+                }
+            }
+        }
+
+        // squared plane distance from the query to node's box
+        private double lowerBound(int node, Query q) {
+            double dLat = q.lat < myMinLat[node] ? myMinLat[node] - q.lat
+                        : q.lat > myMaxLat[node] ? q.lat - myMaxLat[node] : 0;
+            double dLon = q.lon < myMinLon[node] ? myMinLon[node] - q.lon
+                        : q.lon > myMaxLon[node] ? q.lon - myMaxLon[node] : 0;
+            dLon *= q.scale;
+            return dLat * dLat + dLon * dLon;
+        }
+    }
+
+    public static void main(String[] args) throws FileNotFoundException, IOException {
+        String name = "data/usa.graph";
+        if (args.length > 0) {
+            name = args[0];
+        }
+        GraphProcessor gp = new GraphProcessor();
+        gp.initialize(new FileInputStream(name));
+        System.out.println("running GraphProcessor");
+        System.out.printf("loaded %s: %d vertices, %d edges in %.1f ms (%.1f MB/s)\n",
+                          name, gp.numVertices, gp.numEdges, gp.getLoadNanos() / 1e6,
+                          gp.getLoadBytes() / 1e6 / (gp.getLoadNanos() / 1e9));
+    }
+
+    /**
+     * Raw contents of a .graph file: vertex coordinates indexed in file
+     * order and the endpoints of each edge, one array slot per edge line.
+     * buildAdjacency turns the edge list into adjacency arrays, where the
+     * neighbors of vertex i are targets[offsets[i]] up to but not
+     * including targets[offsets[i + 1]].
+     */
+    static final class GraphData {
+        int numVertices;
+        int numEdges;
+        double[] lat;
+        double[] lon;
+        int[] from;
+        int[] to;
+        int[] offsets;
+        int[] targets;
+        long bytes;
+        long nanos;
+
+        /**
+         * Fills offsets and targets from the edge list, adding
+         * each edge in both directions. Neighbors of a vertex keep the
+         * order their edges appear in the file.
+         */
+        void buildAdjacency() {
+            offsets = new int[numVertices + 1];
+            for (int i = 0; i < numEdges; i++) {
+                offsets[from[i] + 1]++;
+                offsets[to[i] + 1]++;
+            }
+            for (int i = 0; i < numVertices; i++) {
+                offsets[i + 1] += offsets[i];
+            }
+            int[] next = Arrays.copyOf(offsets, numVertices);
+            targets = new int[2 * numEdges];
+            for (int i = 0; i < numEdges; i++) {
+                targets[next[from[i]]++] = to[i];
+                targets[next[to[i]]++] = from[i];
+            }
+        }
+    }
+
+    /**
+     * The graph as compressed sparse rows. Vertices are int ids sorted
+     * by latitude then longitude, with coordinates in the parallel lat
+     * and lon arrays; the neighbors of v are targets[offsets[v]] up to
+     * but not including targets[offsets[v + 1]]. Vertices of the file
+     * that share coordinates are one vertex here, as they would be as
+     * keys of a Map&lt;Point, List&lt;Point&gt;&gt;. Points are only
+     * created when results are handed back to callers. Edge lengths are
+     * either stored parallel to targets, as doubles or floats, or
+     * computed on demand when neither array is present. Each vertex is
+     * labeled with its connected component when the graph is built.
+     */
+    static final class Graph {
+        static final Graph EMPTY = new Graph(new double[0], new double[0], new int[1], new int[0]);
+
+        final int size;
+        final double[] lat;
+        final double[] lon;
+        final int[] offsets;
+        final int[] targets;
+        final double[] weights;
+        final float[] floatWeights;
+        final int[] component;
+        final int[] componentSizes;
+
+        Graph(double[] lat, double[] lon, int[] offsets, int[] targets) {
+            this(lat, lon, offsets, targets, components(offsets, targets));
+        }
+
+        /**
+         * A graph whose component labels, numbered as components()
+         * numbers them, are already known, such as from a snapshot.
+         */
+        Graph(double[] lat, double[] lon, int[] offsets, int[] targets, int[] component) {
+            this(lat, lon, offsets, targets, null, null, component);
+        }
+
+        private Graph(double[] lat, double[] lon, int[] offsets, int[] targets,
+                      double[] weights, float[] floatWeights, int[] component) {
+            this.size = lat.length;
+            this.lat = lat;
+            this.lon = lon;
+            this.offsets = offsets;
+            this.targets = targets;
+            this.weights = weights;
+            this.floatWeights = floatWeights;
+            this.component = component;
+            int count = 0;
+            for (int c : component) {
+                count = Math.max(count, c + 1);
+            }
+            componentSizes = new int[count];
+            for (int c : component) {
+                componentSizes[c]++;
+            }
+        }
+
+        /**
+         * Labels vertices by connected component with a breadth-first
+         * search from each vertex not yet labeled, numbering components
+         * in order of their lowest vertex id.
+         */
+        static int[] components(int[] offsets, int[] targets) {
+            int n = offsets.length - 1;
+            int[] component = new int[n];
+            Arrays.fill(component, -1);
+            int[] queue = new int[n];
+            int count = 0;
+            for (int root = 0; root < n; root++) {
+                if (component[root] >= 0) {
+                    continue;
+                }
+                int head = 0;
+                int tail = 0;
+                queue[tail++] = root;
+                component[root] = count;
+                while (head < tail) {
+                    int current = queue[head++];
+                    for (int e = offsets[current]; e < offsets[current + 1]; e++) {
+                        int next = targets[e];
+                        if (component[next] < 0) {
+                            component[next] = count;
+                            queue[tail++] = next;
+                        }
+                    }
+                }
+                count++;
+            }
+            return component;
+        }
+
+        /**
+         * @return this graph with lengths stored as storage asks; lengths
+         * may be null for COMPUTED
+         */
+        Graph withWeights(WeightStorage storage, double[] lengths) {
+            switch (storage) {
+                case DOUBLE:
+                    return new Graph(lat, lon, offsets, targets, lengths, null, component);
+                case FLOAT:
+                    float[] floats = new float[lengths.length];
+                    for (int e = 0; e < floats.length; e++) {
+                        floats[e] = (float) lengths[e];
+                    }
+                    return new Graph(lat, lon, offsets, targets, null, floats, component);
+                default:
+                    return new Graph(lat, lon, offsets, targets, null, null, component);
+            }
+        }
+
+        // length of every edge direction, indexed like targets
+        double[] lengths() {
+            double[] lengths = new double[targets.length];
+            for (int u = 0; u < size; u++) {
+                for (int e = offsets[u]; e < offsets[u + 1]; e++) {
+                    lengths[e] = distance(u, targets[e]);
+                }
+            }
+            return lengths;
+        }
+
+        /**
+         * @return length of edge e, which leaves vertex u
+         */
+        double weight(int u, int e) {
+            if (weights != null) {
+                return weights[e];
+            }
+            if (floatWeights != null) {
+                return floatWeights[e];
+            }
+            return distance(u, targets[e]);
+        }
+
+        /**
+         * Sorts and merges the vertices of parsed data and renumbers its
+         * adjacency to match.
+         */
+        static Graph build(GraphData data) {
+            int n = data.numVertices;
+            int[] order = new int[n];
+            for (int i = 0; i < n; i++) {
+                order[i] = i;
+            }
+            sortByPosition(order, data.lat, data.lon);
+            int[] id = new int[n];
+            int size = 0;
+            for (int k = 0; k < n; k++) {
+                int i = order[k];
+                if (k > 0) {
+                    int prev = order[k - 1];
+                    if (compare(data.lat[prev], data.lon[prev], data.lat[i], data.lon[i]) != 0) {
+                        size++;
+                    }
+                }
+                id[i] = size;
+            }
+            if (n > 0) {
+                size++;
+            }
+            double[] lat = new double[size];
+            double[] lon = new double[size];
+            int[] offsets = new int[size + 1];
+            for (int i = 0; i < n; i++) {
+                lat[id[i]] = data.lat[i];
+                lon[id[i]] = data.lon[i];
+                offsets[id[i] + 1] += data.offsets[i + 1] - data.offsets[i];
+            }
+            for (int v = 0; v < size; v++) {
+                offsets[v + 1] += offsets[v];
+            }
+            int[] targets = new int[data.targets.length];
+            int[] next = Arrays.copyOf(offsets, size);
+            for (int i = 0; i < n; i++) {
+                for (int e = data.offsets[i]; e < data.offsets[i + 1]; e++) {
+                    targets[next[id[i]]++] = id[data.targets[e]];
+                }
+            }
+            return new Graph(lat, lon, offsets, targets);
+        }
+
+        /**
+         * Sorts vertex indexes by their coordinates in Point.compareTo
+         * order, stably, without boxing: insertion sort on short runs,
+         * then bottom-up merges between order and one scratch array.
+         */
+        static void sortByPosition(int[] order, double[] lat, double[] lon) {
+            final int run = 32;
+            int n = order.length;
+            for (int low = 0; low < n; low += run) {
+                int high = Math.min(low + run, n);
+                for (int i = low + 1; i < high; i++) {
+                    int v = order[i];
+                    int j = i - 1;
+                    while (j >= low && compare(lat[order[j]], lon[order[j]], lat[v], lon[v]) > 0) {
+                        order[j + 1] = order[j];
+                        j--;
+                    }
+                    order[j + 1] = v;
+                }
+            }
+            int[] from = order;
+            int[] to = new int[n];
+            for (int width = run; width < n; width *= 2) {
+                for (int low = 0; low < n; low += 2 * width) {
+                    int mid = Math.min(low + width, n);
+                    int high = Math.min(low + 2 * width, n);
+                    int a = low;
+                    int b = mid;
+                    for (int k = low; k < high; k++) {
+                        if (b >= high || (a < mid && compare(lat[from[a]], lon[from[a]],
+                                                             lat[from[b]], lon[from[b]]) <= 0)) {
+                            to[k] = from[a++];
+                        }
+                        else {
+                            to[k] = from[b++];
+                        }
+                    }
+                }
+                int[] swap = from;
+                from = to;
+                to = swap;
+            }
+            if (from != order) {
+                System.arraycopy(from, 0, order, 0, n);
+            }
+        }
+
+        // same order as Point.compareTo
+        static int compare(double lat1, double lon1, double lat2, double lon2) {
+            int latComp = Double.compare(lat1, lat2);
+            if (latComp != 0) {
+                return latComp;
+            }
+            return Double.compare(lon1, lon2);
+        }
+
+        /**
+         * @return id of the vertex at p's coordinates, or -1 if p is not
+         * a vertex
+         */
+        int find(Point p) {
+            double plat = p.getLat();
+            double plon = p.getLon();
+            int low = 0;
+            int high = size - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int comp = compare(lat[mid], lon[mid], plat, plon);
+                if (comp < 0) {
+                    low = mid + 1;
+                }
+                else if (comp > 0) {
+                    high = mid - 1;
+                }
+                else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        int degree(int v) {
+            return offsets[v + 1] - offsets[v];
+        }
+
+        /**
+         * @return a hash of the vertices and adjacency, used to check
+         * that preprocessing saved to a file belongs to this graph
+         */
+        long fingerprint() {
+            long h = size;
+            h = 31 * h + Arrays.hashCode(lat);
+            h = 31 * h + Arrays.hashCode(lon);
+            h = 31 * h + Arrays.hashCode(offsets);
+            h = 31 * h + Arrays.hashCode(targets);
+            return h;
+        }
+
+        double distance(int u, int v) {
+            return GraphProcessor.distance(lat[u], lon[u], lat[v], lon[v]);
+        }
+
+        Point point(int v) {
+            return new Point(lat[v], lon[v]);
+        }
+
+        /**
+         * @return the vertices from the root of pred to target
+         */
+        int[] pathIds(int[] pred, int target) {
+            return pathIds(pred, target, null);
+        }
+
+        /**
+         * @return the vertices from the root of pred to meet, then on
+         * from meet to the root of succ following succ links
+         */
+        int[] pathIds(int[] pred, int meet, int[] succ) {
+            int before = 0;
+            for (int v = meet; v >= 0; v = pred[v]) {
+                before++;
+            }
+            int after = 0;
+            for (int v = succ == null ? -1 : succ[meet]; v >= 0; v = succ[v]) {
+                after++;
+            }
+            int[] ids = new int[before + after];
+            int i = before;
+            for (int v = meet; v >= 0; v = pred[v]) {
+                ids[--i] = v;
+            }
+            i = before;
+            for (int v = succ == null ? -1 : succ[meet]; v >= 0; v = succ[v]) {
+                ids[i++] = v;
+            }
+            return ids;
+        }
+    }
+
+    /**
+     * Same formula as Point.distance, on raw coordinates, so lengths
+     * computed here are bit-for-bit what Point.distance returns.
+     */
+    static double distance(double lat1, double lon1, double lat2, double lon2) {
+        double deltaLon = Math.toRadians(lon1 - lon2);
+        double deltaLat = Math.toRadians(lat1 - lat2);
+        double deltaX = EARTH_RADIUS * Math.cos(Math.toRadians((lat1 + lat2)/2)) * deltaLon;
+        double deltaY = EARTH_RADIUS * deltaLat;
+        return Math.sqrt(Math.pow(deltaX, 2) + Math.pow(deltaY, 2));
+    }
+
+    /**
+     * Writes the binary snapshot layout: a magic number, a version, a
+     * CRC32 checksum of everything after it, then little-endian ints
+     * and doubles in the order they are put. The checksum is patched
+     * into the header on close.
+     */
+    static final class SnapshotWriter implements Closeable {
+        private static final int HEADER_SIZE = 16;
+        private final FileChannel myChannel;
+        private final ByteBuffer myBuffer =
+            ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        private final CRC32 myChecksum = new CRC32();
+        private final int myMagic;
+        private final int myVersion;
+
+        SnapshotWriter(FileChannel channel, int magic, int version) throws IOException {
+            myChannel = channel;
+            myMagic = magic;
+            myVersion = version;
+            myChannel.position(HEADER_SIZE);
+        }
+
+        void putInt(int value) throws IOException {
+            ensure(Integer.BYTES);
+            myBuffer.putInt(value);
+        }
+
+        void putLong(long value) throws IOException {
+            ensure(Long.BYTES);
+            myBuffer.putLong(value);
+        }
+
+        void putInts(int[] values) throws IOException {
+            for (int i = 0; i < values.length; ) {
+                ensure(Integer.BYTES);
+                int count = Math.min(values.length - i, myBuffer.remaining() / Integer.BYTES);
+                myBuffer.asIntBuffer().put(values, i, count);
+                myBuffer.position(myBuffer.position() + count * Integer.BYTES);
+                i += count;
+            }
+        }
+
+        void putFloats(float[] values) throws IOException {
+            for (int i = 0; i < values.length; ) {
+                ensure(Float.BYTES);
+                int count = Math.min(values.length - i, myBuffer.remaining() / Float.BYTES);
+                myBuffer.asFloatBuffer().put(values, i, count);
+                myBuffer.position(myBuffer.position() + count * Float.BYTES);
+                i += count;
+            }
+        }
+
+        void putDoubles(double[] values) throws IOException {
+            for (int i = 0; i < values.length; ) {
+                ensure(Double.BYTES);
+                int count = Math.min(values.length - i, myBuffer.remaining() / Double.BYTES);
+                myBuffer.asDoubleBuffer().put(values, i, count);
+                myBuffer.position(myBuffer.position() + count * Double.BYTES);
+                i += count;
+            }
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (myBuffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            myBuffer.flip();
+            myChecksum.update(myBuffer.duplicate());
+            while (myBuffer.hasRemaining()) {
+                myChannel.write(myBuffer);
+            }
+            myBuffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+            myBuffer.putInt(myMagic).putInt(myVersion).putLong(myChecksum.getValue()).flip();
+            myChannel.write(myBuffer, 0);
+            myChannel.close();
+        }
+    }
+
+    /**
+     * Maps a file written by SnapshotWriter and reads its values back in
+     * order after checking the magic number, version and checksum.
+     */
+    static final class SnapshotReader implements Closeable {
+        private final FileChannel myChannel;
+        private final MappedByteBuffer myBuffer;
+
+        SnapshotReader(FileChannel channel, int magic, int version) throws IOException {
+            myChannel = channel;
+            long size = channel.size();
+            if (size < SnapshotWriter.HEADER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException("not a snapshot file");
+            }
+            myBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            myBuffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (myBuffer.getInt() != magic) {
+                throw new IOException("not a snapshot file");
+            }
+            int found = myBuffer.getInt();
+            if (found != version) {
+                throw new IOException("snapshot version " + found + ", expected " + version);
+            }
+            long expected = myBuffer.getLong();
+            CRC32 checksum = new CRC32();
+            checksum.update(myBuffer.duplicate());
+            if (checksum.getValue() != expected) {
+                throw new IOException("snapshot checksum mismatch");
+            }
+        }
+
+        long size() {
+            return myBuffer.capacity();
+        }
+
+        int nextInt() throws IOException {
+            check(Integer.BYTES);
+            return myBuffer.getInt();
+        }
+
+        long nextLong() throws IOException {
+            check(Long.BYTES);
+            return myBuffer.getLong();
+        }
+
+        int[] nextInts(int count) throws IOException {
+            check((long) count * Integer.BYTES);
+            int[] values = new int[count];
+            myBuffer.asIntBuffer().get(values);
+            myBuffer.position(myBuffer.position() + count * Integer.BYTES);
+            return values;
+        }
+
+        void skip(long bytes) throws IOException {
+            check(bytes);
+            myBuffer.position(myBuffer.position() + (int) bytes);
+        }
+
+        float[] nextFloats(int count) throws IOException {
+            check((long) count * Float.BYTES);
+            float[] values = new float[count];
+            myBuffer.asFloatBuffer().get(values);
+            myBuffer.position(myBuffer.position() + count * Float.BYTES);
+            return values;
+        }
+
+        double[] nextDoubles(int count) throws IOException {
+            check((long) count * Double.BYTES);
+            double[] values = new double[count];
+            myBuffer.asDoubleBuffer().get(values);
+            myBuffer.position(myBuffer.position() + count * Double.BYTES);
+            return values;
+        }
+
+        private void check(long bytes) throws IOException {
+            if (bytes < 0 || bytes > myBuffer.remaining()) {
+                throw new IOException("snapshot is truncated");
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            myChannel.close();
+        }
+    }
+
+    /**
+     * Reads the .graph text format straight from the bytes of a channel.
+     * Numbers are decoded in place rather than through Scanner, split and
+     * parseDouble, so the only allocations are the arrays in the result
+     * and one fixed read buffer.
+     */
+    static final class GraphParser {
+        private static final int BUFFER_SIZE = 1 << 16;
+        private static final int MAX_TOKEN = 64;
+        private static final long MAX_EXACT_MANTISSA = 1L << 53;
+        private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20,
+            1e21, 1e22
+        };
+
+        private final ReadableByteChannel myChannel;
+        private final byte[] myData = new byte[BUFFER_SIZE];
+        private final ByteBuffer myBuffer = ByteBuffer.wrap(myData);
+        private final byte[] myToken = new byte[MAX_TOKEN];
+        private int myTokenLength;
+        private int myPos;
+        private int myLimit;
+        private long myBytes;
+
+        GraphParser(ReadableByteChannel channel) {
+            myChannel = channel;
+        }
+
+        GraphData parse() throws IOException {
+            long start = System.nanoTime();
+            GraphData data = new GraphData();
+            data.numVertices = nextInt();
+            data.numEdges = nextInt();
+            skipLine();
+            data.lat = new double[data.numVertices];
+            data.lon = new double[data.numVertices];
+            for (int i = 0; i < data.numVertices; i++) {
+                skipToken();
+                data.lat[i] = nextDouble();
+                data.lon[i] = nextDouble();
+                skipLine();
+            }
+            data.from = new int[data.numEdges];
+            data.to = new int[data.numEdges];
+            for (int i = 0; i < data.numEdges; i++) {
+                int u = nextInt();
+                int v = nextInt();
+                if (u < 0 || u >= data.numVertices || v < 0 || v >= data.numVertices) {
+                    throw new IOException("edge " + i + " has an invalid endpoint");
+                }
+                data.from[i] = u;
+                data.to[i] = v;
+                skipLine();
+            }
+            data.bytes = myBytes;
+            data.nanos = System.nanoTime() - start;
+            return data;
+        }
+
+        // returns the next byte without consuming it, -1 at end of input
+        private int peek() throws IOException {
+            if (myPos == myLimit && !fill()) {
+                return -1;
+            }
+            return myData[myPos];
+        }
+
+        private boolean fill() throws IOException {
+            myBuffer.clear();
+            int n = myChannel.read(myBuffer);
+            while (n == 0) {
+                n = myChannel.read(myBuffer);
+            }
+            if (n < 0) {
+                return false;
+            }
+            myPos = 0;
+            myLimit = n;
+            myBytes += n;
+            return true;
+        }
+
+        private void skipWhitespace() throws IOException {
+            int c = peek();
+            while (c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+                myPos++;
+                c = peek();
+            }
+        }
+
+        private void skipToken() throws IOException {
+            skipWhitespace();
+            int c = peek();
+            if (c < 0) {
+                throw new EOFException();
+            }
+            while (c > ' ') {
+                myPos++;
+                c = peek();
+            }
+        }
+
+        private void skipLine() throws IOException {
+            int c = peek();
+            while (c >= 0 && c != '\n') {
+                myPos++;
+                c = peek();
+            }
+            if (c == '\n') {
+                myPos++;
+            }
+        }
+
+        private int nextInt() throws IOException {
+            skipWhitespace();
+            boolean negative = false;
+            int c = peek();
+            if (c == '-') {
+                negative = true;
+                myPos++;
+                c = peek();
+            }
+            if (c < '0' || c > '9') {
+                throw new IOException("expected an integer");
+            }
+            long value = 0;
+            while (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                if (value > Integer.MAX_VALUE) {
+                    throw new IOException("integer out of range");
+                }
+                myPos++;
+                c = peek();
+            }
+            return (int) (negative ? -value : value);
+        }
+
+        /**
+         * Decodes a decimal number. When the digits fit in 53 bits and the
+         * power of ten is exact, a single multiply or divide is correctly
+         * rounded, giving the same bits as Double.parseDouble; anything
+         * else is handed to Double.parseDouble.
+         */
+        private double nextDouble() throws IOException {
+            skipWhitespace();
+            myTokenLength = 0;
+            boolean negative = false;
+            int c = peek();
+            if (c == '-' || c == '+') {
+                negative = c == '-';
+                consume(c);
+                c = peek();
+            }
+            long mantissa = 0;
+            int digits = 0;
+            int scale = 0;
+            boolean exact = true;
+            while (c >= '0' && c <= '9') {
+                mantissa = accumulate(mantissa, c);
+                exact &= mantissa < MAX_EXACT_MANTISSA;
+                digits++;
+                consume(c);
+                c = peek();
+            }
+            if (c == '.') {
+                consume(c);
+                c = peek();
+                while (c >= '0' && c <= '9') {
+                    mantissa = accumulate(mantissa, c);
+                    exact &= mantissa < MAX_EXACT_MANTISSA;
+                    digits++;
+                    scale++;
+                    consume(c);
+                    c = peek();
+                }
+            }
+            if (digits == 0) {
+                throw new IOException("expected a number");
+            }
+            if (c == 'e' || c == 'E') {
+                exact = false;
+                while (c > ' ') {
+                    consume(c);
+                    c = peek();
+                }
+            }
+            if (exact && scale < POWERS_OF_TEN.length) {
+                double value = scale == 0 ? mantissa : mantissa / POWERS_OF_TEN[scale];
+                return negative ? -value : value;
+            }
+            return Double.parseDouble(new String(myToken, 0, myTokenLength,
+                                                 StandardCharsets.ISO_8859_1));
+        }
+
+        private long accumulate(long mantissa, int c) {
+            return mantissa < MAX_EXACT_MANTISSA ? mantissa * 10 + (c - '0') : mantissa;
+        }
+
+        private void consume(int c) throws IOException {
+            if (myTokenLength == MAX_TOKEN) {
+                throw new IOException("number too long");
+            }
+            myToken[myTokenLength++] = (byte) c;
+            myPos++;
+        }
+    }
 }
@@ -0,0 +1,268 @@
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves GraphProcessor queries over HTTP with the JDK's built-in
+ * server, answering every request from one FrozenGraph loaded at
+ * startup. Points are given as lat,lon and snapped to the graph with
+ * nearestPoint where a vertex is needed.
+ *
+ *   GET /route?from=lat,lon&to=lat,lon    {"distance": miles, "points": [[lat, lon], ...]}
+ *   GET /distance?from=lat,lon&to=lat,lon {"distance": miles}
+ *   GET /nearest?point=lat,lon            {"lat": lat, "lon": lon}
+ *   GET /connected?from=lat,lon&to=lat,lon {"connected": true}
+ *
+ * Bad parameters, including coordinates that aren't finite, get a 400,
+ * pairs with no route a 404 and any other failure, such as a search
+ * mode whose data wasn't prepared, a 500, each with
+ * {"error": message}. Requests run on a fixed pool of worker threads,
+ * since routing is CPU-bound and more threads than cores only queue.
+ *
+ * Usage: java RouteServer [file.graph] [port] [search mode]
+ * A CONTRACTION_HIERARCHY or LANDMARKS mode prepares its data once and
+ * keeps it next to the graph file for the next start.
+ */
+public class RouteServer {
+    private final GraphProcessor.FrozenGraph myGraph;
+    private final HttpServer myServer;
+    private final ExecutorService myWorkers;
+
+    /**
+     * Creates a server for graph on port, 0 for any free port, handling
+     * requests on the given number of threads. Call start to serve.
+     */
+    public RouteServer(GraphProcessor.FrozenGraph graph, int port, int threads) throws IOException {
+        myGraph = graph;
+        myServer = HttpServer.create(new InetSocketAddress(port), 1024);
+        myWorkers = Executors.newFixedThreadPool(threads);
+        myServer.setExecutor(myWorkers);
+        myServer.createContext("/route", json(this::route));
+        myServer.createContext("/distance", json(this::distance));
+        myServer.createContext("/nearest", json(this::nearest));
+        myServer.createContext("/connected", json(this::connected));
+    }
+
+    public void start() {
+        myServer.start();
+    }
+
+    /**
+     * Stops accepting requests, lets ones in progress finish for up to a
+     * second, then stops the worker threads.
+     */
+    public void stop() {
+        myServer.stop(1);
+        myWorkers.shutdown();
+    }
+
+    /**
+     * @return the port the server listens on
+     */
+    public int getPort() {
+        return myServer.getAddress().getPort();
+    }
+
+    private Body route(Map<String, String> query) {
+        GraphProcessor.RouteResult path = routeBetween(query);
+        return out -> {
+            out.write("{\"distance\": ");
+            out.write(Double.toString(path.getDistance()));
+            out.write(", \"points\": [");
+            GraphProcessor.Coordinates c = path.coordinates();
+            for (int i = 0; c.next(); i++) {
+                if (i > 0) {
+                    out.write(", ");
+                }
+                out.write('[');
+                out.write(Double.toString(c.lat()));
+                out.write(", ");
+                out.write(Double.toString(c.lon()));
+                out.write(']');
+            }
+            out.write("]}");
+        };
+    }
+
+    private Body distance(Map<String, String> query) {
+        GraphProcessor.RouteResult path = routeBetween(query);
+        return out -> out.write("{\"distance\": " + path.getDistance() + "}");
+    }
+
+    private Body nearest(Map<String, String> query) {
+        Point p = myGraph.nearestPoint(point(query, "point"));
+        return out -> out.write("{\"lat\": " + p.getLat() + ", \"lon\": " + p.getLon() + "}");
+    }
+
+    private Body connected(Map<String, String> query) {
+        Point from = myGraph.nearestPoint(point(query, "from"));
+        Point to = myGraph.nearestPoint(point(query, "to"));
+        boolean connected = myGraph.connected(from, to);
+        return out -> out.write("{\"connected\": " + connected + "}");
+    }
+
+    private GraphProcessor.RouteResult routeBetween(Map<String, String> query) {
+        Point from = myGraph.nearestPoint(point(query, "from"));
+        Point to = myGraph.nearestPoint(point(query, "to"));
+        if (from.equals(to)) {
+            return GraphProcessor.RouteResult.at(from);
+        }
+        try {
+            return myGraph.routeResult(from, to);
+        }
+        catch (IllegalArgumentException e) {
+            throw new NoRouteException();
+        }
+    }
+
+    private static Point point(Map<String, String> query, String name) {
+        String value = query.get(name);
+        if (value == null) {
+            throw new BadRequestException("missing " + name);
+        }
+        String[] parts = value.split(",");
+        try {
+            if (parts.length == 2) {
+                double lat = Double.parseDouble(parts[0].trim());
+                double lon = Double.parseDouble(parts[1].trim());
+                if (Double.isFinite(lat) && Double.isFinite(lon)) {
+                    return new Point(lat, lon);
+                }
+            }
+        }
+        catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new BadRequestException(name + " should be lat,lon");
+    }
+
+    private static Map<String, String> parse(String rawQuery) {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null) {
+            return query;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int split = pair.indexOf('=');
+            if (split > 0) {
+                query.put(URLDecoder.decode(pair.substring(0, split), StandardCharsets.UTF_8),
+                          URLDecoder.decode(pair.substring(split + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return query;
+    }
+
+    /**
+     * Answers a query, throwing BadRequestException or NoRouteException
+     * before any output if it can't.
+     */
+    private interface Endpoint {
+        Body answer(Map<String, String> query);
+    }
+
+    /**
+     * Writes an answer's JSON.
+     */
+    private interface Body {
+        void write(Writer out) throws IOException;
+    }
+
+    /**
+     * Wraps an endpoint so its answer is found first, where anything
+     * that goes wrong still gets a proper status, and then its JSON is
+     * streamed to the client in chunks as it is written rather than
+     * built up as one string.
+     */
+    private static HttpHandler json(Endpoint endpoint) {
+        return exchange -> {
+            try {
+                int status = 200;
+                Body body;
+                try {
+                    if (!"GET".equals(exchange.getRequestMethod())) {
+                        status = 405;
+                        body = error("use GET");
+                    }
+                    else {
+                        body = endpoint.answer(parse(exchange.getRequestURI().getRawQuery()));
+                    }
+                }
+                catch (BadRequestException e) {
+                    status = 400;
+                    body = error(e.getMessage());
+                }
+                catch (NoRouteException e) {
+                    status = 404;
+                    body = error("no route");
+                }
+                catch (RuntimeException e) {
+                    status = 500;
+                    body = error(e.toString());
+                }
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(status, 0); // 0: chunked
+                try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                        exchange.getResponseBody(), StandardCharsets.UTF_8))) {
+                    body.write(out);
+                }
+            }
+            finally {
+                exchange.close();
+            }
+        };
+    }
+
+    private static Body error(String message) {
+        StringBuilder json = new StringBuilder("{\"error\": \"");
+        for (char c : message.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            }
+            else if (c >= ' ') {
+                json.append(c);
+            }
+        }
+        String body = json.append("\"}").toString();
+        return out -> out.write(body);
+    }
+
+    private static final class BadRequestException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        BadRequestException(String message) {
+            super(message);
+        }
+    }
+
+    private static final class NoRouteException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    public static void main(String[] args) throws IOException {
+        String filename = args.length > 0 ? args[0] : "data/usa.graph";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 8080;
+        GraphProcessor gp = new GraphProcessor();
+        gp.initialize(new FileInputStream(filename));
+        if (args.length > 2) {
+            GraphProcessor.SearchMode mode = GraphProcessor.SearchMode.valueOf(args[2]);
+            if (mode == GraphProcessor.SearchMode.CONTRACTION_HIERARCHY) {
+                gp.prepareContractionHierarchy(filename + ".ch");
+            }
+            else if (mode == GraphProcessor.SearchMode.LANDMARKS) {
+                gp.prepareLandmarks(16, GraphProcessor.LandmarkStrategy.AVOID, filename + ".alt");
+            }
+            gp.setSearchMode(mode);
+        }
+        RouteServer server = new RouteServer(gp.freeze(), port,
+                                             Runtime.getRuntime().availableProcessors());
+        server.start();
+        System.out.printf("serving %s on port %d with %s routes\n", filename, server.getPort(),
+                          gp.getSearchMode());
+    }
+}
@@ -2,10 +2,24 @@ import static org.junit.jupiter.api.Assertions.*;
 
 import org.junit.jupiter.api.*;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.*;
+import java.util.zip.CRC32;
 
 
 /**
@@ -75,6 +89,399 @@ public class TestSimpleGraphProcessor {
 		}
 	}
 
+    /**
+     * Tests k-nearest and radius queries, which return points closest first
+     */
+	@Test
+	public void testNearestPoints() {
+		Point p = new Point(2, -1);
+		List<Point> nearest = simpleDriver.nearestPoints(p, 3);
+		assertEquals(3, nearest.size());
+		assertEquals(p, nearest.get(0), "a graph point is its own nearest point");
+		for (int i = 1; i < nearest.size(); i++) {
+			assertTrue(p.distance(nearest.get(i - 1)) <= p.distance(nearest.get(i)), "points should be closest first");
+		}
+		assertEquals(10, simpleDriver.nearestPoints(p, 50).size(), "can't return more points than the graph has");
+
+		List<Point> within = simpleDriver.pointsWithin(p, 70);
+		assertEquals(Arrays.asList(new Point(2, -1), new Point(2, 0), new Point(1, -1)), within,
+			"only B and D are within 70 miles of A");
+		assertTrue(simpleDriver.pointsWithin(new Point(30, 30), 1).isEmpty());
+	}
+
+    /**
+     * Tests that a batch of nearest point queries agrees with one query at a time
+     */
+	@Test
+	public void testNearestPointBatch() {
+		List<Point> queries = Arrays.asList(new Point(2.1, -1.1), new Point(0.1, 0.1), new Point(-2, 3), new Point(1.4, 0.6));
+		List<Point> batch = simpleDriver.nearestPointBatch(queries);
+		assertEquals(queries.size(), batch.size());
+		for (int i = 0; i < queries.size(); i++) {
+			assertEquals(simpleDriver.nearestPoint(queries.get(i)), batch.get(i));
+		}
+	}
+
+    /**
+     * Tests that the linear scans find the same nearest points as the k-d tree
+     */
+	@Test
+	public void testNearestIndex() {
+		Point[] queries = {new Point(2.1, -1.1), new Point(0.1, 0.1), new Point(-2, 3), new Point(1.4, 0.6)};
+		Point[] expected = new Point[queries.length];
+		for (int i = 0; i < queries.length; i++) {
+			expected[i] = simpleDriver.nearestPoint(queries[i]);
+		}
+		for (GraphProcessor.NearestIndex index : GraphProcessor.NearestIndex.values()) {
+			simpleDriver.setNearestIndex(index);
+			for (int i = 0; i < queries.length; i++) {
+				assertEquals(expected[i], simpleDriver.nearestPoint(queries[i]), index + " found a different point");
+			}
+		}
+
+		List<Point> nonFinite = Arrays.asList(new Point(Double.NaN, 0), new Point(0, Double.NaN),
+			new Point(Double.POSITIVE_INFINITY, 0), new Point(0, Double.NEGATIVE_INFINITY));
+		for (GraphProcessor.NearestIndex index : GraphProcessor.NearestIndex.values()) {
+			simpleDriver.setNearestIndex(index);
+			for (Point q : nonFinite) {
+				assertSame(q, simpleDriver.nearestPoint(q), index + " should return a non-finite query as is");
+			}
+		}
+		assertEquals(nonFinite.toString(), simpleDriver.nearestPointBatch(nonFinite).toString());
+	}
+
+    /**
+     * Tests snapping onto the nearest edge and routing from part way along an edge
+     */
+	@Test
+	public void testSnapToEdge() {
+		Point snapped = simpleDriver.snapToEdge(new Point(2.1, -0.5));
+		assertEquals(2, snapped.getLat(), 1e-9, "should snap onto edge A-B");
+		assertEquals(-0.5, snapped.getLon(), 1e-9, "should snap onto edge A-B");
+
+		List<Point> route = simpleDriver.route(snapped, new Point(1, 1));
+		assertEquals(Arrays.asList(snapped, new Point(2, 0), new Point(1, 1)), route,
+			"halfway from A to B, the route to F goes through B");
+		Point alsoOnAB = simpleDriver.snapToEdge(new Point(1.9, -0.8));
+		assertEquals(Arrays.asList(snapped, alsoOnAB), simpleDriver.route(snapped, alsoOnAB),
+			"two points on one edge are joined along it");
+		assertThrows(IllegalArgumentException.class, () -> simpleDriver.route(new Point(2.1, -0.5), new Point(1, 1)),
+			"a point on no edge has no route");
+		assertThrows(IllegalArgumentException.class, () -> simpleDriver.snapToEdge(new Point(Double.NaN, 0)));
+		assertThrows(IllegalArgumentException.class, () -> simpleDriver.route(new Point(Double.NaN, 0), new Point(1, 1)));
+		assertThrows(IllegalArgumentException.class, () -> simpleDriver.route(new Point(1, 1), new Point(0, Double.POSITIVE_INFINITY)));
+	}
+
+    /**
+     * Tests that a saved snapshot reopens to the same graph
+     */
+	@Test
+	public void testSnapshotRoundTrip() throws Exception {
+		File file = File.createTempFile("simple", ".snapshot");
+		file.deleteOnExit();
+		simpleDriver.saveSnapshot(file.getPath());
+		GraphProcessor reopened = new GraphProcessor();
+		reopened.initializeSnapshot(new FileInputStream(file));
+		assertEquals(simpleDriver.getVertices(), reopened.getVertices());
+		assertEquals(simpleDriver.getComponentCount(), reopened.getComponentCount());
+		for (Point p : simpleDriver.getVertices()) {
+			assertEquals(simpleDriver.getComponent(p), reopened.getComponent(p));
+		}
+		assertEquals(simpleDriver.route(new Point(2, -1), new Point(1, 1)), reopened.route(new Point(2, -1), new Point(1, 1)));
+		assertEquals(new Point(2, -1), reopened.nearestPoint(new Point(2.1, -1.1)));
+		assertFalse(reopened.connected(new Point(1, -1), new Point(-1, 1)));
+	}
+
+    /**
+     * Tests that a snapshot with a damaged body or another version is rejected
+     */
+	@Test
+	public void testSnapshotRejectsCorruptFile() throws Exception {
+		File file = File.createTempFile("simple", ".snapshot");
+		file.deleteOnExit();
+		simpleDriver.saveSnapshot(file.getPath());
+		byte[] good = Files.readAllBytes(file.toPath());
+
+		byte[] damaged = good.clone();
+		damaged[damaged.length - 5] ^= 1;
+		Files.write(file.toPath(), damaged);
+		assertThrows(IOException.class, () -> new GraphProcessor().initializeSnapshot(new FileInputStream(file)),
+			"a flipped bit should fail the checksum");
+
+		byte[] otherVersion = good.clone();
+		otherVersion[4] = 99; // version follows the 4-byte magic
+		Files.write(file.toPath(), otherVersion);
+		assertThrows(IOException.class, () -> new GraphProcessor().initializeSnapshot(new FileInputStream(file)),
+			"another version should be rejected");
+
+		Files.write(file.toPath(), Arrays.copyOf(good, 10));
+		assertThrows(IOException.class, () -> new GraphProcessor().initializeSnapshot(new FileInputStream(file)),
+			"a file shorter than the header should be rejected");
+
+		// adjacency past the checksum: header of 16 bytes, 3 counts, coordinates and lengths, then offsets and targets
+		ByteBuffer header = ByteBuffer.wrap(good).order(ByteOrder.LITTLE_ENDIAN);
+		int vertices = header.getInt(16);
+		int arcs = header.getInt(24);
+		int offsets = 28 + 16 * vertices + 8 * arcs;
+		int targets = offsets + 4 * (vertices + 1);
+
+		ByteBuffer badTarget = ByteBuffer.wrap(good.clone()).order(ByteOrder.LITTLE_ENDIAN);
+		badTarget.putInt(targets, vertices);
+		Files.write(file.toPath(), withChecksum(badTarget.array()));
+		assertThrows(IOException.class, () -> new GraphProcessor().initializeSnapshot(new FileInputStream(file)),
+			"an edge to a vertex past the end should be rejected");
+
+		ByteBuffer badOffsets = ByteBuffer.wrap(good.clone()).order(ByteOrder.LITTLE_ENDIAN);
+		badOffsets.putInt(offsets + 4, arcs + 1);
+		Files.write(file.toPath(), withChecksum(badOffsets.array()));
+		assertThrows(IOException.class, () -> new GraphProcessor().initializeSnapshot(new FileInputStream(file)),
+			"decreasing offsets should be rejected");
+
+		ByteBuffer badEnd = ByteBuffer.wrap(good.clone()).order(ByteOrder.LITTLE_ENDIAN);
+		badEnd.putInt(offsets + 4 * vertices, arcs - 1);
+		Files.write(file.toPath(), withChecksum(badEnd.array()));
+		assertThrows(IOException.class, () -> new GraphProcessor().initializeSnapshot(new FileInputStream(file)),
+			"offsets not ending at the arc count should be rejected");
+	}
+
+	// recomputes the checksum in the header, so only the values inside are wrong
+	private static byte[] withChecksum(byte[] snapshot) {
+		CRC32 checksum = new CRC32();
+		checksum.update(snapshot, 16, snapshot.length - 16);
+		ByteBuffer.wrap(snapshot).order(ByteOrder.LITTLE_ENDIAN).putLong(8, checksum.getValue());
+		return snapshot;
+	}
+
+    /**
+     * Tests that cached routes answer repeated and reversed queries, and that the cache is bounded and reset on reload
+     */
+	@Test
+	public void testRouteCache() throws Exception {
+		simpleDriver.setRouteCache(100, 1 << 20);
+		List<Point> there = simpleDriver.route(new Point(2, -1), new Point(1, 1));
+		assertEquals(0, simpleDriver.getRouteCacheHits());
+		assertEquals(1, simpleDriver.getRouteCacheMisses());
+		assertEquals(there, simpleDriver.route(new Point(2, -1), new Point(1, 1)));
+		List<Point> back = new ArrayList<>(there);
+		Collections.reverse(back);
+		assertEquals(back, simpleDriver.route(new Point(1, 1), new Point(2, -1)), "the way back should be the cached route reversed");
+		assertEquals(2, simpleDriver.getRouteCacheHits());
+		assertEquals(1, simpleDriver.getRouteCacheSize());
+
+		simpleDriver.setRouteCache(100, 1);
+		simpleDriver.route(new Point(2, -1), new Point(1, 1));
+		assertEquals(0, simpleDriver.getRouteCacheSize(), "a route bigger than the byte limit should be evicted");
+
+		simpleDriver.setRouteCache(1, 1 << 20);
+		simpleDriver.route(new Point(2, -1), new Point(1, 1));
+		simpleDriver.route(new Point(2, 1), new Point(1, -1));
+		simpleDriver.route(new Point(2, 1), new Point(2, -1));
+		assertEquals(1, simpleDriver.getRouteCacheSize(), "the route limit should hold across all shards");
+		simpleDriver.route(new Point(2, -1), new Point(2, 1));
+		assertEquals(1, simpleDriver.getRouteCacheHits(), "the last route cached should be kept");
+
+		simpleDriver.initialize(new FileInputStream(simpleGraphFile));
+		assertEquals(0, simpleDriver.getRouteCacheHits() + simpleDriver.getRouteCacheMisses(), "reloading should start an empty cache");
+		assertEquals(there, simpleDriver.route(new Point(2, -1), new Point(1, 1)));
+	}
+
+    /**
+     * Tests that a route result holds the same points and distance as route
+     */
+	@Test
+	public void testRouteResult() throws Exception {
+		List<Point> expected = simpleDriver.route(new Point(2, -1), new Point(1, 1));
+		GraphProcessor.RouteResult result = simpleDriver.routeResult(new Point(2, -1), new Point(1, 1));
+		assertEquals(expected, result.points());
+		assertEquals(expected.size(), result.size());
+		GraphProcessor.Coordinates c = result.coordinates();
+		for (Point p : expected) {
+			assertTrue(c.next());
+			assertEquals(p, new Point(c.lat(), c.lon()));
+		}
+		assertFalse(c.next());
+		double d = 0;
+		for (int i = 1; i < expected.size(); i++) {
+			d += expected.get(i - 1).distance(expected.get(i));
+		}
+		assertEquals(d, result.getDistance(), 1e-9);
+		assertEquals(result.getDistance(), simpleDriver.routeDistance(result));
+		assertEquals(result.getDistance(), simpleDriver.routeDistance(result.points()));
+		assertThrows(UnsupportedOperationException.class, () -> result.points().add(new Point(0, 0)));
+	}
+
+    /**
+     * Tests that a distance matrix agrees with routes between snapped points
+     */
+	@Test
+	public void testDistanceMatrix() {
+		List<Point> sources = Arrays.asList(simpleCityLookup.get("A A"), simpleCityLookup.get("K K"), simpleCityLookup.get("H H"));
+		List<Point> targets = Arrays.asList(simpleCityLookup.get("F F"), simpleCityLookup.get("B B"), simpleCityLookup.get("L L"), simpleCityLookup.get("D D"));
+		double[][] matrix = simpleDriver.distanceMatrix(sources, targets);
+		assertEquals(3, matrix.length);
+		for (int i = 0; i < sources.size(); i++) {
+			assertEquals(4, matrix[i].length);
+			Point from = simpleDriver.nearestPoint(sources.get(i));
+			for (int j = 0; j < targets.size(); j++) {
+				Point to = simpleDriver.nearestPoint(targets.get(j));
+				if (from.equals(to)) {
+					assertEquals(0.0, matrix[i][j]);
+				} else if (!simpleDriver.connected(from, to)) {
+					assertEquals(Double.POSITIVE_INFINITY, matrix[i][j], from + " to " + to);
+				} else {
+					assertEquals(simpleDriver.routeDistance(simpleDriver.route(from, to)), matrix[i][j], 1e-9, from + " to " + to);
+				}
+			}
+		}
+		double[][] flipped = simpleDriver.distanceMatrix(targets, sources);
+		for (int i = 0; i < sources.size(); i++) {
+			for (int j = 0; j < targets.size(); j++) {
+				assertEquals(matrix[i][j], flipped[j][i], 1e-9);
+			}
+		}
+	}
+
+    /**
+     * Tests that a shortest path tree stops at its budget and agrees with routes
+     */
+	@Test
+	public void testShortestPathTree() {
+		Point a = new Point(2, -1);
+		GraphProcessor.ShortestPathTree all = simpleDriver.shortestPathTree(a, Double.POSITIVE_INFINITY);
+		assertEquals(6, all.size(), "A's component has six points");
+		assertEquals(a, all.getPoint(0));
+		assertEquals(-1, all.getParent(0));
+		for (int k = 1; k < all.size(); k++) {
+			assertTrue(all.getParent(k) < k);
+			assertTrue(all.getDistance(k - 1) <= all.getDistance(k));
+			double d = simpleDriver.routeDistance(simpleDriver.route(a, all.getPoint(k)));
+			assertEquals(d, all.getDistance(k), 1e-3);
+			assertEquals(d, simpleDriver.routeDistance(all.pathTo(k)), 1e-9);
+		}
+
+		GraphProcessor.ShortestPathTree near = simpleDriver.shortestPathTree(a, 100);
+		assertEquals(new HashSet<>(Arrays.asList(a, new Point(2, 0), new Point(1, -1))), new HashSet<>(near.getPoints()));
+		assertThrows(IllegalArgumentException.class, () -> simpleDriver.shortestPathTree(new Point(3, 3), 100));
+	}
+
+    /**
+     * Tests that an isochrone's boundary surrounds the points in reach
+     */
+	@Test
+	public void testIsochrone() {
+		GraphProcessor.Isochrone iso = simpleDriver.isochrone(new Point(1, 0), 80);
+		assertEquals(new HashSet<>(Arrays.asList(new Point(1, 0), new Point(2, 0), new Point(1, -1), new Point(1, 1))), new HashSet<>(iso.getPoints()));
+		List<Point> boundary = iso.getBoundary();
+		assertTrue(boundary.containsAll(Arrays.asList(new Point(2, 0), new Point(1, -1), new Point(1, 1))));
+		assertFalse(boundary.contains(new Point(1, 0)), "E is inside the hull");
+
+		GraphProcessor.Isochrone alone = simpleDriver.isochrone(new Point(0, 0), 1);
+		assertEquals(1, alone.getTree().size());
+		assertEquals(3, alone.getBoundary().size(), "G and a mile along each of its roads");
+		for (Point p : alone.getBoundary()) {
+			assertTrue(p.distance(new Point(0, 0)) < 1.01);
+		}
+
+		Point sw = new Point(0, 0);
+		Point se = new Point(0, 1);
+		Point ne = new Point(1, 1);
+		Point nw = new Point(1, 0);
+		List<Point> repeated = Arrays.asList(sw, se, se, se, ne, ne, ne, nw, sw, sw, new Point(0.5, 0.5));
+		assertEquals(Arrays.asList(sw, se, ne, nw), GraphProcessor.Isochrone.convexHull(repeated),
+			"each corner once, counterclockwise");
+		assertEquals(Arrays.asList(sw), GraphProcessor.Isochrone.convexHull(Arrays.asList(sw, sw, sw)));
+		assertEquals(Arrays.asList(sw, se), GraphProcessor.Isochrone.convexHull(Arrays.asList(se, sw, se, sw, se)));
+	}
+
+    /**
+     * Tests that delta-stepping finds exactly Dijkstra's distances for any delta
+     */
+	@Test
+	public void testDeltaStepping() {
+		List<Point> vertices = simpleDriver.getVertices();
+		assertEquals(10, vertices.size());
+		for (Point source : vertices) {
+			double[] expected = simpleDriver.distancesFrom(source);
+			for (int k = 0; k < vertices.size(); k++) {
+				Point p = vertices.get(k);
+				if (p.equals(source)) {
+					assertEquals(0.0, expected[k]);
+				} else if (simpleDriver.connected(source, p)) {
+					assertEquals(simpleDriver.routeDistance(simpleDriver.route(source, p)), expected[k], 1e-9);
+				} else {
+					assertEquals(Double.POSITIVE_INFINITY, expected[k]);
+				}
+			}
+			// tiny deltas put nearly every vertex in a bucket of its own, or saturate the bucket number
+			for (double delta : new double[] {Double.MIN_VALUE, 1e-300, 1e-9, 1, 50, 70, 100, 1000, Double.POSITIVE_INFINITY}) {
+				assertArrayEquals(expected, simpleDriver.distancesFrom(source, delta), "delta " + delta + " from " + source);
+			}
+		}
+		assertThrows(IllegalArgumentException.class, () -> simpleDriver.distancesFrom(new Point(2, -1), 0));
+		assertThrows(IllegalArgumentException.class, () -> simpleDriver.distancesFrom(new Point(2, -1), Double.NaN));
+	}
+
+    /**
+     * Tests that a multi-stop route joins the routes between its stops
+     */
+	@Test
+	public void testRouteVia() {
+		Point a = new Point(2, -1);
+		Point c = new Point(2, 1);
+		Point d = new Point(1, -1);
+		GraphProcessor.MultiStopRoute trip = simpleDriver.routeVia(Arrays.asList(new Point(2.1, -1.1), c, c, d));
+		assertEquals(Arrays.asList(a, c, c, d), trip.getStops());
+		assertEquals(3, trip.getLegCount());
+
+		List<Point> expected = new ArrayList<>(simpleDriver.route(a, c));
+		List<Point> back = simpleDriver.route(c, d);
+		expected.addAll(back.subList(1, back.size()));
+		List<Point> joined = trip.getRoute().points();
+		assertEquals(expected, joined);
+		assertEquals(simpleDriver.routeDistance(simpleDriver.route(a, c)), trip.getLegDistance(0), 1e-9);
+		assertEquals(0.0, trip.getLegDistance(1));
+		assertEquals(simpleDriver.routeDistance(back), trip.getLegDistance(2), 1e-9);
+		assertEquals(simpleDriver.routeDistance(expected), trip.getDistance(), 1e-9);
+		assertEquals(c, joined.get(trip.getLegStart(1)));
+		assertEquals(c, joined.get(trip.getLegStart(2)));
+
+		assertThrows(IllegalArgumentException.class, () -> simpleDriver.routeVia(Arrays.asList(a, c, new Point(-1, 1))));
+		assertThrows(IllegalArgumentException.class, () -> simpleDriver.routeVia(Arrays.asList(a)));
+	}
+
+    /**
+     * Tests that a frozen graph gives the same routes from many threads at once
+     */
+	@Test
+	public void testFrozenGraph() throws Exception {
+		GraphProcessor.FrozenGraph frozen = simpleDriver.freeze();
+		List<Point> expected = simpleDriver.route(new Point(2, -1), new Point(1, 1));
+		List<Thread> threads = new ArrayList<>();
+		List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+		for (int t = 0; t < 8; t++) {
+			Thread thread = new Thread(() -> {
+				try {
+					for (int i = 0; i < 1000; i++) {
+						assertEquals(expected, frozen.route(new Point(2, -1), new Point(1, 1)));
+						assertTrue(frozen.connected(new Point(2, -1), new Point(1, 1)));
+						assertEquals(new Point(2, -1), frozen.nearestPoint(new Point(2.1, -1.1)));
+					}
+				} catch (Throwable e) {
+					failures.add(e);
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertTrue(failures.isEmpty(), "queries failed under threads: " + failures);
+
+		simpleDriver.initialize(new FileInputStream("data/durham.graph"));
+		assertEquals(expected, frozen.route(new Point(2, -1), new Point(1, 1)), "frozen graph should outlive a reload");
+	}
+
     /**
      * Tests that driver returns a List<Point> corresponding to the shortest path from start to end
      * Accepts alternate paths that are ultimately within 3% of the distance of the true shortest path
@@ -100,6 +507,30 @@ public class TestSimpleGraphProcessor {
 	
 	}
 
+    /**
+     * Tests that the other search modes find the same routes as testRoute
+     */
+	@Test public void testRouteSearchModes() throws IllegalArgumentException {
+		simpleDriver.prepareContractionHierarchy();
+		simpleDriver.prepareLandmarks(3, GraphProcessor.LandmarkStrategy.AVOID);
+		GraphProcessor.SearchMode[] modes = {GraphProcessor.SearchMode.ASTAR, GraphProcessor.SearchMode.BIDIRECTIONAL,
+			GraphProcessor.SearchMode.CONTRACTION_HIERARCHY, GraphProcessor.SearchMode.LANDMARKS};
+		for (GraphProcessor.SearchMode mode : modes) {
+			// A to F
+			List<Point> resRoute1 = simpleDriver.route(new Point(2, -1), new Point(1, 1), mode);
+			List<Point> trueRoute1 = Arrays.asList(new Point(2, -1), new Point(2, 0), new Point(1, 1));
+			assertTrue(checkPaths(resRoute1, trueRoute1, simpleDriver.routeDistance(resRoute1), 166.93), "Your " + mode + " route was not close to the true shortest path between the start and ending points!");
+
+			// A to B
+			List<Point> resRoute2 = simpleDriver.route(new Point(2, -1), new Point(2, 0), mode);
+			assertEquals(Arrays.asList(new Point(2, -1), new Point(2, 0)), resRoute2, mode + " route from A to B is wrong");
+
+			// D to J (1, -1) to (-1, 1)
+			assertThrows(IllegalArgumentException.class, ()->simpleDriver.route(new Point(1, -1), new Point(-1, 1), mode));
+			assertThrows(IllegalArgumentException.class, ()->simpleDriver.route(new Point(1, -1), new Point(1, -1), mode));
+		}
+	}
+
     /**
      * Tests that driver returns the distance along a given route represented as a List<Point> input
      * Tests only if .routeDistsance() is correct (i.e. can pass even if .route() is incorect)
@@ -131,6 +562,109 @@ public class TestSimpleGraphProcessor {
 		assertTrue(simpleDriver.connected(new Point(0, 0), new Point(-1, -1)),
 		   "You mistakenly claim two points representing Durham NC and Raleigh NC's nearest points, respectively, are not connected. This test is designed if .connected() is correct, even if .nearestPoint() is faulty"); 
 	}
+
+    /**
+     * Tests that component labels agree with connected
+     */
+	@Test
+	public void testComponents() {
+		int a = simpleDriver.getComponent(new Point(2, -1));
+		int j = simpleDriver.getComponent(new Point(-1, 1));
+		assertNotEquals(a, j, "A and J are in different components");
+		assertEquals(simpleDriver.getComponent(new Point(0, 0)), simpleDriver.getComponent(new Point(-1, -1)));
+		assertEquals(-1, simpleDriver.getComponent(new Point(5, 5)), "a point not in the graph has no component");
+		int total = 0;
+		for (int c = 0; c < simpleDriver.getComponentCount(); c++) {
+			total += simpleDriver.getComponentSize(c);
+		}
+		assertEquals(10, total, "component sizes should add up to the vertex count");
+	}
+
+    /**
+     * Tests that a batch file of named and numeric pairs is routed, with a status per line, in input order
+     */
+	@Test
+	public void testBatchRouter() throws Exception {
+		BatchRouter router = new BatchRouter(simpleDriver.freeze(), simpleCityLookup, 2, false);
+		String input = String.join("\n",
+			"# name pairs and coordinate pairs",
+			"A A,F F",
+			"",
+			"2,-1,1,1",
+			"Nowhere,A A",
+			"1,2,3",
+			"G G,A A");
+		StringWriter out = new StringWriter();
+		ByteArrayOutputStream log = new ByteArrayOutputStream();
+		long rows = router.run(new BufferedReader(new StringReader(input)), out, new PrintStream(log));
+		assertEquals(5, rows, "blank lines and comments are skipped");
+
+		GraphProcessor.RouteResult af = simpleDriver.routeResult(new Point(2, -1), new Point(1, 1));
+		String found = af.getDistance() + "," + (af.size() - 1) + ",ok";
+		assertEquals(Arrays.asList(
+			"origin,destination,distance,hops,status",
+			"A A,F F," + found,
+			"2.0 -1.0,1.0 1.0," + found,
+			"Nowhere,A A,,,unknown city Nowhere",
+			"1 2 3,,,,expected 2 names or 4 numbers",
+			"G G,A A,,,no route"), Arrays.asList(out.toString().split("\n")), "one line per pair, in input order");
+	}
+
+    /**
+     * Tests that a batch whose input fails to read reports it and leaves no writer thread behind
+     */
+	@Test
+	public void testBatchRouterReadFailure() throws Exception {
+		BatchRouter router = new BatchRouter(simpleDriver.freeze(), simpleCityLookup, 2, false);
+		BufferedReader failing = new BufferedReader(new StringReader("")) {
+			private boolean read;
+
+			@Override
+			public String readLine() throws IOException {
+				if (read) {
+					throw new IOException("disk gone");
+				}
+				read = true;
+				return "A A,F F";
+			}
+		};
+		IOException e = assertThrows(IOException.class,
+			() -> router.run(failing, new StringWriter(), new PrintStream(new ByteArrayOutputStream())));
+		assertEquals("disk gone", e.getMessage());
+		for (Thread t : Thread.getAllStackTraces().keySet()) {
+			assertNotEquals("BatchRouter writer", t.getName(), "the writer thread should have ended");
+		}
+	}
+
+    /**
+     * Tests the HTTP server's answers and status codes
+     */
+	@Test
+	public void testRouteServer() throws Exception {
+		RouteServer server = new RouteServer(simpleDriver.freeze(), 0, 2);
+		server.start();
+		try {
+			String base = "http://localhost:" + server.getPort();
+			HttpURLConnection route = get(base + "/route?from=2,-1&to=1,1");
+			assertEquals(200, route.getResponseCode());
+			String body = read(route.getInputStream());
+			assertTrue(body.startsWith("{\"distance\": ") && body.contains("\"points\": [[2.0, -1.0]"), body);
+
+			assertEquals(400, get(base + "/route?to=1,1").getResponseCode(), "from is missing");
+			assertEquals(400, get(base + "/route?from=NaN,0&to=1,1").getResponseCode(), "from isn't finite");
+			assertEquals(400, get(base + "/route?from=Infinity,0&to=1,1").getResponseCode(), "from isn't finite");
+			HttpURLConnection noRoute = get(base + "/route?from=0,0&to=2,-1");
+			assertEquals(404, noRoute.getResponseCode(), "G and A are in different components");
+			assertEquals("{\"error\": \"no route\"}", read(noRoute.getErrorStream()));
+
+			HttpURLConnection post = (HttpURLConnection) new URL(base + "/route?from=2,-1&to=1,1").openConnection();
+			post.setRequestMethod("POST");
+			assertEquals(405, post.getResponseCode());
+		}
+		finally {
+			server.stop();
+		}
+	}
  
     // helper method to check if a point's distance to input is within 3% of the true nearest point's distance to input
 	private static boolean inRange(double resPathDist, double truePathDist) {
@@ -150,6 +684,18 @@ public class TestSimpleGraphProcessor {
         return true;
     }
 
+    // opens a GET request to url
+	private static HttpURLConnection get(String url) throws IOException {
+		return (HttpURLConnection) new URL(url).openConnection();
+	}
+
+    // reads a response body as UTF-8
+	private static String read(InputStream in) throws IOException {
+		try (in) {
+			return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+		}
+	}
+
     // checks if a range of points contains a certain result point
     private static boolean pointInRange(Point result, Point[] ranged) {
 		for (Point p : ranged) {
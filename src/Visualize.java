@@ -92,6 +92,25 @@ public class Visualize {
         StdDraw.show();
     }
 
+    /**
+     * Draws the outline of a polygon, such as an isochrone boundary,
+     * on the imageFile, joining the last corner back to the first
+     */
+    public void drawPolygon(List<Point> polygon) {
+        if (polygon == null || polygon.size() == 0) {
+            return;
+        }
+        double[] x = new double[polygon.size()];
+        double[] y = new double[polygon.size()];
+        for (int i = 0; i < x.length; i++) {
+            x[i] = polygon.get(i).getLon();
+            y[i] = lat2y(polygon.get(i).getLat());
+        }
+        StdDraw.setPenRadius(EDGE_SIZE);
+        StdDraw.polygon(x, y);
+        StdDraw.show();
+    }
+
     private void readVis(String visFile) throws FileNotFoundException {
         Scanner reader = new Scanner(new File(visFile));
         String[] lonBounds = reader.nextLine().split(" ");
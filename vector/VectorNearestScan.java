@@ -0,0 +1,106 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * GraphProcessor.NearestScan with both passes evaluated a full vector
+ * of vertices at a time using the jdk.incubator.vector API, for
+ * GraphProcessor.NearestIndex.VECTOR_SCAN. It is kept out of src so
+ * that GraphProcessor compiles without the incubator module; when this
+ * class can't be loaded GraphProcessor falls back to the scalar scan.
+ *
+ * To use it, compile it against the compiled src classes and run with
+ * the module added:
+ *   javac --add-modules jdk.incubator.vector -cp out -d out vector/VectorNearestScan.java
+ *   java --add-modules jdk.incubator.vector -cp out GraphBenchmark scan data/durham.graph
+ */
+final class VectorNearestScan extends GraphProcessor.NearestScan {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    VectorNearestScan(GraphProcessor.Graph g) {
+        super(g);
+    }
+
+    @Override
+    int lowestBound(double qLat, double qLon, double qCos) {
+        int length = SPECIES.length();
+        int upper = SPECIES.loopBound(lat.length);
+        DoubleVector bestBound = DoubleVector.broadcast(SPECIES, Double.POSITIVE_INFINITY);
+        DoubleVector bestIndex = DoubleVector.zero(SPECIES);
+        // lane j of index holds i + j; doubles count exactly far past any graph
+        DoubleVector index = DoubleVector.zero(SPECIES).addIndex(1);
+        DoubleVector step = DoubleVector.broadcast(SPECIES, length);
+        int i = 0;
+        for (; i < upper; i += length) {
+            DoubleVector bound = bound(i, qLat, qLon, qCos);
+            VectorMask<Double> lower = bound.lt(bestBound);
+            bestBound = bestBound.blend(bound, lower);
+            bestIndex = bestIndex.blend(index, lower);
+            index = index.add(step);
+        }
+        int best = 0;
+        double min = Double.POSITIVE_INFINITY;
+        for (int j = 0; j < length; j++) {
+            double b = bestBound.lane(j);
+            if (b < min) {
+                min = b;
+                best = (int) bestIndex.lane(j);
+            }
+        }
+        for (; i < lat.length; i++) {
+            double dLat = lat[i] - qLat;
+            double dLon = (lon[i] - qLon) * (qCos + cos[i]) * 0.5;
+            double b = dLat * dLat + dLon * dLon;
+            if (b < min) {
+                min = b;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    @Override
+    int closestWithin(double qLat, double qLon, double qCos, double limit, int best) {
+        int length = SPECIES.length();
+        int upper = SPECIES.loopBound(lat.length);
+        double bestDistance = GraphProcessor.distance(qLat, qLon, lat[best], lon[best]);
+        int i = 0;
+        for (; i < upper; i += length) {
+            VectorMask<Double> near = bound(i, qLat, qLon, qCos).compare(VectorOperators.LE, limit);
+            if (!near.anyTrue()) {
+                continue;
+            }
+            for (int j = near.firstTrue(); j < length; j++) {
+                if (near.laneIsSet(j)) {
+                    double d = GraphProcessor.distance(qLat, qLon, lat[i + j], lon[i + j]);
+                    if (d < bestDistance) {
+                        bestDistance = d;
+                        best = i + j;
+                    }
+                }
+            }
+        }
+        for (; i < lat.length; i++) {
+            double dLat = lat[i] - qLat;
+            double dLon = (lon[i] - qLon) * (qCos + cos[i]) * 0.5;
+            if (dLat * dLat + dLon * dLon <= limit) {
+                double d = GraphProcessor.distance(qLat, qLon, lat[i], lon[i]);
+                if (d < bestDistance) {
+                    bestDistance = d;
+                    best = i;
+                }
+            }
+        }
+        return best;
+    }
+
+    // squared bounds for the vertices at [i, i + lanes), as in the scalar scan
+    private DoubleVector bound(int i, double qLat, double qLon, double qCos) {
+        DoubleVector dLat = DoubleVector.fromArray(SPECIES, lat, i).sub(qLat);
+        DoubleVector dLon = DoubleVector.fromArray(SPECIES, lon, i).sub(qLon)
+                                        .mul(DoubleVector.fromArray(SPECIES, cos, i).add(qCos))
+                                        .mul(0.5);
+        return dLat.mul(dLat).add(dLon.mul(dLon));
+    }
+}